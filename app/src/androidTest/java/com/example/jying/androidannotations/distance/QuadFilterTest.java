@@ -0,0 +1,148 @@
+package com.example.jying.androidannotations.distance;
+
+import android.test.AndroidTestCase;
+
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.utils.PackedContours;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that QuadFilter finds exactly the quads that OpenCV's approxPolyDP, isContourConvex and contourArea found, with the same corners in the same order.
+ */
+public class QuadFilterTest extends AndroidTestCase {
+
+    private static final int IMAGE_SIZE = 200;
+
+    private Mat image;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        assertTrue("Unable to load OpenCV", OpenCVLoader.initDebug());
+        image = Mat.zeros(IMAGE_SIZE, IMAGE_SIZE, CvType.CV_8UC1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        image.release();
+        super.tearDown();
+    }
+
+    public void testSquare() {
+        fill(new Point(40, 40), new Point(160, 40), new Point(160, 160), new Point(40, 160));
+        assertEquals("Quads found in a square", 1, assertMatchesNative());
+    }
+
+    // Small teeth along one edge stay within the approximation's tolerance, so the contour still approximates to four corners.
+    public void testNearSquareWithJaggedEdge() {
+        ArrayList<Point> corners = new ArrayList<Point>();
+        for (int x = 40; x < 160; x += 6) {
+            corners.add(new Point(x, 40));
+            corners.add(new Point(x + 3, 43));
+        }
+        corners.add(new Point(160, 40));
+        corners.add(new Point(160, 160));
+        corners.add(new Point(40, 160));
+        fill(corners.toArray(new Point[corners.size()]));
+        assertEquals("Quads found in a jagged square", 1, assertMatchesNative());
+    }
+
+    // An arrowhead approximates to four corners, but isn't convex.
+    public void testConcaveShape() {
+        fill(new Point(40, 40), new Point(160, 100), new Point(40, 160), new Point(90, 100));
+        assertEquals("Quads found in a concave shape", 0, assertMatchesNative());
+    }
+
+    // A lone pixel and a one pixel thick line have contours of one and two points.
+    public void testDegenerateContours() {
+        image.put(20, 20, 255);
+        Imgproc.line(image, new Point(60, 100), new Point(140, 100), new Scalar(255));
+        assertEquals("Quads found in degenerate contours", 0, assertMatchesNative());
+    }
+
+    private void fill(Point... corners) {
+        MatOfPoint polygon = new MatOfPoint(corners);
+        Imgproc.fillPoly(image, Collections.singletonList(polygon), new Scalar(255));
+        polygon.release();
+    }
+
+    // Filters the image's contours both ways, checks that the results match, and returns the number of quads found.
+    private int assertMatchesNative() {
+        Mat hierarchy = new Mat();
+
+        // findContours overwrites its image, so each call gets its own copy.
+        Mat packedImage = image.clone();
+        PackedContours packed = new PackedContours();
+        Imgproc.findContours(packedImage, packed, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        packedImage.release();
+        assertTrue("Expected contours in the image", packed.size() > 0);
+        int[] quads = new QuadFilter(DetectionPreset.MIN_QUAD_AREA).filter(packed);
+
+        Mat nativeImage = image.clone();
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        Imgproc.findContours(nativeImage, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+        nativeImage.release();
+        hierarchy.release();
+        int[] nativeQuads = filterNatively(contours);
+
+        assertEquals("Contours found", contours.size(), packed.size());
+        assertEquals("Quad corners", Arrays.toString(nativeQuads), Arrays.toString(quads));
+        return quads.length / 8;
+    }
+
+    // The quad filter as it was before it moved into Java, with the corners of each quad packed as x, y pairs.
+    private static int[] filterNatively(List<MatOfPoint> contours) {
+        ArrayList<Point> quadCorners = new ArrayList<Point>();
+        MatOfPoint2f contour2f = new MatOfPoint2f();
+        MatOfPoint2f approx = new MatOfPoint2f();
+        MatOfPoint approxInt = new MatOfPoint();
+        for (MatOfPoint contour : contours) {
+            contour.convertTo(contour2f, CvType.CV_32FC2);
+            Imgproc.approxPolyDP(contour2f, approx, Imgproc.arcLength(contour2f, true) * DetectionPreset.APPROXIMATION_EPSILON, true);
+            approx.convertTo(approxInt, CvType.CV_32S);
+
+            if (approx.rows() == 4 && Math.abs(Imgproc.contourArea(approx)) > DetectionPreset.MIN_QUAD_AREA && Imgproc.isContourConvex(approxInt)) {
+                double maxCosine = 0;
+                Point[] corners = approx.toArray();
+                for (int j = 2; j < 5; j++) {
+                    double cosine = Math.abs(angle(corners[j % 4], corners[j - 2], corners[j - 1]));
+                    maxCosine = Math.max(maxCosine, cosine);
+                }
+
+                if (maxCosine < DetectionPreset.MAX_CORNER_COSINE) {
+                    quadCorners.addAll(Arrays.asList(approxInt.toArray()));
+                }
+            }
+            contour.release();
+        }
+        contour2f.release();
+        approx.release();
+        approxInt.release();
+
+        int[] packed = new int[quadCorners.size() * 2];
+        for (int index = 0; index < quadCorners.size(); index++) {
+            packed[index * 2] = (int) quadCorners.get(index).x;
+            packed[index * 2 + 1] = (int) quadCorners.get(index).y;
+        }
+        return packed;
+    }
+
+    private static double angle(Point pt1, Point pt2, Point pt0) {
+        double dx1 = pt1.x - pt0.x;
+        double dy1 = pt1.y - pt0.y;
+        double dx2 = pt2.x - pt0.x;
+        double dy2 = pt2.y - pt0.y;
+        return (dx1 * dx2 + dy1 * dy2) / Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2) + 1e-10);
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Point;
+import android.os.Debug;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.view.MotionEvent;
+
+import com.example.jying.androidannotations.AnnotationView;
+
+/**
+ * Checks that GestureHandler handles ACTION_MOVE events without allocating, so drawing, panning and zooming don't cause garbage collections.
+ */
+public class GestureHandlerAllocationTest extends AndroidTestCase {
+
+    private static final int VIEW_SIZE = 1000;
+    private static final int NUM_MOVES = 50;
+    private static final int HISTORY_SIZE = 4; // Historical samples batched into each move, as at high input rates.
+    private static final float DENSITY = 2; // Fixed, so dp thresholds are the same few pixels on every device.
+
+    private CountingGestureHandler handler;
+    private long downTime;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Looper.myLooper() == null) {
+            Looper.prepare(); // GestureHandler posts its long press callback to this thread.
+        }
+        AnnotationView.setDensity(DENSITY); // Without a view, density is 0 and every dp threshold would be 0 pixels.
+        Subview subview = new Subview(2 * VIEW_SIZE, 2 * VIEW_SIZE, VIEW_SIZE, VIEW_SIZE);
+        subview.setViewDimensions(VIEW_SIZE, VIEW_SIZE);
+        handler = new CountingGestureHandler();
+        handler.setSubview(subview);
+        downTime = SystemClock.uptimeMillis();
+    }
+
+    public void testOneFingerMoveDoesNotAllocate() {
+        MotionEvent[] moves = new MotionEvent[NUM_MOVES];
+        for (int index = 0; index < NUM_MOVES; index++) {
+            moves[index] = obtainBatchedMove(index);
+        }
+
+        handler.evaluateEvent(obtainSingle(MotionEvent.ACTION_DOWN, 0, 0), VIEW_SIZE, VIEW_SIZE);
+        handler.evaluateEvent(moves[0], VIEW_SIZE, VIEW_SIZE); // Warm up, growing the reused sample arrays.
+        handler.evaluateEvent(moves[1], VIEW_SIZE, VIEW_SIZE);
+
+        int allocations = countAllocations(moves, 2);
+        assertTrue("Expected the moves to be drawn", handler.drawCount > 0);
+        assertEquals("Allocations during one-finger moves", 0, allocations);
+    }
+
+    // Samples that move less than MINIMUM_DRAW_DP from the last kept one are skipped, leaving just the current position of each move.
+    public void testSamplesBelowMinimumDistanceAreSkipped() {
+        MotionEvent[] moves = new MotionEvent[NUM_MOVES];
+        for (int index = 0; index < NUM_MOVES; index++) {
+            moves[index] = obtainJitteringMove(index);
+        }
+
+        handler.evaluateEvent(obtainSingle(MotionEvent.ACTION_DOWN, 0, 0), VIEW_SIZE, VIEW_SIZE);
+        handler.evaluateEvent(moves[0], VIEW_SIZE, VIEW_SIZE);
+        handler.evaluateEvent(moves[1], VIEW_SIZE, VIEW_SIZE);
+
+        handler.drawCount = 0;
+        int allocations = countAllocations(moves, 2);
+        assertEquals("Samples drawn", NUM_MOVES - 2, handler.drawCount);
+        assertEquals("Allocations while skipping samples", 0, allocations);
+    }
+
+    public void testTwoFingerMoveDoesNotAllocate() {
+        MotionEvent[] moves = new MotionEvent[NUM_MOVES];
+        for (int index = 0; index < NUM_MOVES; index++) {
+            moves[index] = obtainTwoFingerMove(index);
+        }
+
+        handler.evaluateEvent(obtainSingle(MotionEvent.ACTION_DOWN, 0, 0), VIEW_SIZE, VIEW_SIZE);
+        handler.evaluateEvent(moves[0], VIEW_SIZE, VIEW_SIZE);
+        handler.evaluateEvent(moves[1], VIEW_SIZE, VIEW_SIZE);
+
+        int allocations = countAllocations(moves, 2);
+        assertTrue("Expected the moves to pan", handler.panCount > 0);
+        assertEquals("Allocations during two-finger moves", 0, allocations);
+    }
+
+    // Counts the objects allocated on this thread while the events from start onwards are handled.
+    // The thread allocation counters are deprecated, but nothing else counts allocations on just one thread.
+    @SuppressWarnings("deprecation")
+    private int countAllocations(MotionEvent[] events, int start) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int index = start; index < events.length; index++) {
+            handler.evaluateEvent(events[index], VIEW_SIZE, VIEW_SIZE);
+        }
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+
+    private MotionEvent obtainSingle(int action, float x, float y) {
+        return MotionEvent.obtain(downTime, downTime, action, x, y, 0);
+    }
+
+    // A one-finger move along the diagonal, carrying HISTORY_SIZE historical samples.
+    private MotionEvent obtainBatchedMove(int moveNum) {
+        int samples = HISTORY_SIZE + 1;
+        long time = downTime + moveNum * samples;
+        MotionEvent event = MotionEvent.obtain(downTime, time, MotionEvent.ACTION_MOVE, moveNum * samples, moveNum * samples, 0);
+        for (int sample = 1; sample < samples; sample++) {
+            event.addBatch(time + sample, moveNum * samples + sample, moveNum * samples + sample, 1, 1, 0);
+        }
+        return event;
+    }
+
+    // A one-finger move along the diagonal whose historical samples jitter within a pixel of where the previous move ended.
+    private MotionEvent obtainJitteringMove(int moveNum) {
+        int step = HISTORY_SIZE + 1;
+        long time = downTime + moveNum * step;
+        int previous = Math.max(0, moveNum - 1) * step;
+        MotionEvent event = MotionEvent.obtain(downTime, time, MotionEvent.ACTION_MOVE, previous + (moveNum % 2), previous, 0);
+        for (int sample = 1; sample < step; sample++) {
+            event.addBatch(time + sample, previous + ((moveNum + sample) % 2), previous, 1, 1, 0);
+        }
+        event.addBatch(time + step, moveNum * step, moveNum * step, 1, 1, 0);
+        return event;
+    }
+
+    // A two-finger move that spreads the fingers apart while sliding them to the right.
+    private MotionEvent obtainTwoFingerMove(int moveNum) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[2];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[2];
+        for (int finger = 0; finger < 2; finger++) {
+            properties[finger] = new MotionEvent.PointerProperties();
+            properties[finger].id = finger;
+            properties[finger].toolType = MotionEvent.TOOL_TYPE_FINGER;
+            coords[finger] = new MotionEvent.PointerCoords();
+            coords[finger].pressure = 1;
+            coords[finger].size = 1;
+        }
+        coords[0].x = 300 + 2 * moveNum;
+        coords[0].y = 500;
+        coords[1].x = 600 + 6 * moveNum;
+        coords[1].y = 500;
+        return MotionEvent.obtain(downTime, downTime + moveNum, MotionEvent.ACTION_MOVE, 2, properties, coords, 0, 0, 1, 1, 0, 0, 0, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        handler.evaluateEvent(obtainSingle(MotionEvent.ACTION_UP, 0, 0), VIEW_SIZE, VIEW_SIZE); // Cancels the pending long press.
+        super.tearDown();
+    }
+
+    // Records what it was called with, without allocating.
+    private static class CountingGestureHandler extends GestureHandler {
+        int drawCount;
+        int panCount;
+
+        @Override
+        protected void gestureStart(Point position) {}
+
+        @Override
+        protected void gestureDraw(Point position, int dx, int dy, long eventTime, boolean possiblyAccidental) {
+            drawCount++;
+        }
+
+        @Override
+        protected void unintendedDraw() {}
+
+        @Override
+        protected void gestureFinish(Point position, int maxFingers) {}
+
+        @Override
+        protected void longPress(Point position) {}
+
+        @Override
+        protected void gesturePan(int dx, int dy) {
+            panCount++;
+            super.gesturePan(dx, dy);
+        }
+    }
+}
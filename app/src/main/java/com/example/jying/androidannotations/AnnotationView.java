@@ -3,42 +3,70 @@ package com.example.jying.androidannotations;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.view.MotionEvent;
 import android.view.View;
 
 import com.example.jying.androidannotations.support.AnnotationLayer;
 import com.example.jying.androidannotations.support.BackingCanvas;
+import com.example.jying.androidannotations.support.Metrics;
+import com.example.jying.androidannotations.support.MipmapChain;
 import com.example.jying.androidannotations.support.Overlay;
+import com.example.jying.androidannotations.support.RenderDelegate;
 import com.example.jying.androidannotations.support.Subview;
+import com.example.jying.androidannotations.support.TileDelegate;
+import com.example.jying.androidannotations.support.TiledImageSource;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
  * Created by jying on 5/21/2015.
  */
-public class AnnotationView extends View {
+public class AnnotationView extends View implements RenderDelegate, TileDelegate {
 
     // Mode constants
     private static float density; // The screen density.  Used for converting dp to px
+    private static final int HUD_TEXT_SIZE_DP = 10;
+    private static final int HUD_BACKGROUND_COLOR = 0xA0000000;
 
     private Subview subview; // Represents the part of the canvas that the user is currently looking at.
     private Bitmap bgBitmap; // The bitmap picture that the user took.  This is the background of this view.
+    private MipmapChain bgMipmaps; // Smaller copies of bgBitmap, drawn instead of it when zoomed out.
+    private Paint mipmapPaint; // Filters the background when it's drawn from a smaller copy.
+    private Rect mipmapSourceRect; // Reused every frame by onDraw.
+    private Rect detailSourceRect; // Reused every frame by onDraw.
+    private TiledImageSource tiledSource; // The full resolution picture, drawn over bgBitmap when zoomed in past bgBitmap's detail.  May be null.
     private HashMap<String, AnnotationLayer> layers; // The list of layers that are currently instantiated in the activity.
     private Set<BackingCanvas> canvasSet;
     private ArrayList<BackingCanvas> canvases;
+    private Metrics.Histogram drawHistogram; // Time spent in onDraw.
+    private boolean metricsHudVisible; // Whether recorded metrics are printed over the annotations.
+    private Paint hudTextPaint, hudBackgroundPaint;
 
     public static int convertDpToPx(int dpDimension) {
         return (int) (dpDimension * density + 0.5f);
     }
 
+    public static float convertDpToPx(float dpDimension) {
+        return dpDimension * density;
+    }
+
     public static int convertPxToDp(int pxDimension) {
         return (int) (pxDimension / density);
     }
 
+    // Sets the screen density that dp are converted with.  Views set this when they're created.
+    public static void setDensity(float density) {
+        AnnotationView.density = density;
+    }
+
     public AnnotationView(Context context, Bitmap background, HashMap<String, AnnotationLayer> layers, ArrayList<BackingCanvas> canvases) {
         super(context);
         this.bgBitmap = background;
@@ -48,8 +76,19 @@ public class AnnotationView extends View {
         int bitmapWidth = bgBitmap.getWidth();
         int bitmapHeight = bgBitmap.getHeight();
 
-        AnnotationView.density = getContext().getResources().getDisplayMetrics().density;
+        setDensity(getContext().getResources().getDisplayMetrics().density);
         canvasSet = new HashSet<BackingCanvas>(); // Allocate this object for onMeasure to save time when the activity is being drawn.
+        drawHistogram = Metrics.getInstance().getHistogram(Metrics.VIEW_DRAW, "AnnotationView");
+        mipmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mipmapSourceRect = new Rect();
+        detailSourceRect = new Rect();
+        bgMipmaps = new MipmapChain(bgBitmap);
+        bgMipmaps.buildAsync(new Runnable() {
+            @Override
+            public void run() {
+                invalidate();
+            }
+        });
 
         // Create helper classes
         subview = new Subview(bitmapWidth, bitmapHeight, getMeasuredWidth(), getMeasuredHeight()); // Create subview rectangle with for the view initially, but these will be updated soon after in onMeasure.
@@ -59,6 +98,32 @@ public class AnnotationView extends View {
         return subview;
     }
 
+    // Sets the full resolution version of the background.  The subview can then zoom in as far relative to the full image as it could relative to bgBitmap.
+    public void setTiledImageSource(TiledImageSource source) {
+        tiledSource = source;
+        if (source != null) {
+            source.setTileDelegate(this);
+            subview.setMaxMagnification(Math.max(1, (float) source.getWidth() / bgBitmap.getWidth()) * Subview.MAX_MAGNIFICATION_MODIFIER);
+        }
+        else {
+            subview.setMaxMagnification(Subview.MAX_MAGNIFICATION_MODIFIER);
+        }
+        invalidate();
+    }
+
+    // Shows or hides a summary of recorded metrics on top of the annotations.  Metrics must also be enabled for anything to be recorded.
+    public void setMetricsHudVisible(boolean visible) {
+        metricsHudVisible = visible;
+        if (visible && (hudTextPaint == null)) {
+            hudTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            hudTextPaint.setColor(Color.WHITE);
+            hudTextPaint.setTextSize(convertDpToPx(HUD_TEXT_SIZE_DP));
+            hudBackgroundPaint = new Paint();
+            hudBackgroundPaint.setColor(HUD_BACKGROUND_COLOR);
+        }
+        invalidate();
+    }
+
     // This fires when the view first gets its dimensions.
     @Override
     public void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
@@ -72,6 +137,9 @@ public class AnnotationView extends View {
         Overlay overlay;
         for (Map.Entry<String, AnnotationLayer> entry : layers.entrySet()) {
             if ((overlay = entry.getValue().getOverlay()).isViewInflationRequired()) {
+                // Its annotations are sized from the view, so anything recorded before the view had its dimensions is stale.
+                overlay.invalidateDisplayList();
+                overlay.invalidateSpatialIndex();
                 canvasSet.add(overlay.getBackingCanvas());
             }
         }
@@ -79,18 +147,81 @@ public class AnnotationView extends View {
             canvas.redrawAll();
         }
 
+        updateVisibleRegions();
         invalidate();
     }
 
+    // Tells every canvas which part of the image is displayed, so damage deferred while it was off screen is redrawn before onDraw rather than during it.
+    private void updateVisibleRegions() {
+        Rect visible = subview.getSubviewRectangle();
+        for (BackingCanvas backingCanvas : canvases) {
+            backingCanvas.setVisibleRegion(visible);
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas) {
+        long startNanos = System.nanoTime();
         super.onDraw(canvas);
-        canvas.drawBitmap(bgBitmap, subview.getSubviewRectangle(), subview.getViewRectangle(), null); // Draw requested portion of background image
+        drawBackground(canvas); // Draw requested portion of background image
+        if ((tiledSource != null) && (subview.getMagnification() > 1)) {
+            drawDetailTiles(canvas); // bgBitmap is being upscaled, so draw the full resolution picture over it.  Tiles that aren't loaded yet leave bgBitmap showing.
+        }
         for (BackingCanvas backingCanvas : canvases) {
             backingCanvas.drawOnCanvas(canvas, subview);
+            for (AnnotationLayer layer : layers.values()) {
+                Overlay overlay = layer.getOverlay();
+                if (overlay.getBackingCanvas() == backingCanvas) {
+                    overlay.drawWetInk(canvas, subview); // Strokes in progress go over their own canvas, but under the canvases above it.
+                }
+            }
+        }
+        drawHistogram.recordSince(startNanos);
+
+        if (metricsHudVisible) {
+            drawMetricsHud(canvas);
         }
     }
 
+    // When zoomed out, draws from the smallest copy of the background that still has enough detail, rather than sampling all of bgBitmap.
+    private void drawBackground(Canvas canvas) {
+        Bitmap background = bgMipmaps.getLevel(subview.getMagnification());
+        if (background == bgBitmap) {
+            canvas.drawBitmap(bgBitmap, subview.getSubviewRectangle(), subview.getViewRectangle(), null);
+        }
+        else {
+            bgMipmaps.toLevelRect(background, subview.getSubviewRectangle(), mipmapSourceRect);
+            canvas.drawBitmap(background, mipmapSourceRect, subview.getViewRectangle(), mipmapPaint);
+        }
+    }
+
+    private void drawDetailTiles(Canvas canvas) {
+        Rect subviewRect = subview.getSubviewRectangle();
+        float scale = (float) tiledSource.getWidth() / bgBitmap.getWidth();
+        detailSourceRect.set((int) (subviewRect.left * scale), (int) (subviewRect.top * scale), (int) (subviewRect.right * scale), (int) (subviewRect.bottom * scale));
+        tiledSource.draw(canvas, detailSourceRect, subview.getViewRectangle(), null);
+    }
+
+    // Prints one line per metrics entry in the top left corner.  This isn't included in the onDraw timing.
+    private void drawMetricsHud(Canvas canvas) {
+        List<String> lines = Metrics.getInstance().getSummaryLines();
+        float lineHeight = hudTextPaint.getFontSpacing();
+        float width = 0;
+        for (String line : lines) {
+            width = Math.max(width, hudTextPaint.measureText(line));
+        }
+        canvas.drawRect(0, 0, width + lineHeight, (lines.size() + 1) * lineHeight, hudBackgroundPaint);
+        for (int index = 0; index < lines.size(); index++) {
+            canvas.drawText(lines.get(index), lineHeight / 2, (index + 1) * lineHeight, hudTextPaint);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        bgMipmaps.release(); // The view is being replaced, so its copies of the background can go back to the pool.
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         for (Map.Entry<String, AnnotationLayer> entry : layers.entrySet()) {
@@ -98,7 +229,26 @@ public class AnnotationView extends View {
                 entry.getValue().getOverlay().evaluateEvent(event, getMeasuredWidth(), getMeasuredHeight());
             }
         }
+        updateVisibleRegions(); // The gesture may have panned or zoomed.
         invalidate(); // Redraw the view.
         return true;
     }
+
+    // A tile of the full resolution background arrived, so draw it.
+    @Override
+    public void onTileLoaded(TiledImageSource source) {
+        invalidate();
+    }
+
+    // The visible part of a backing canvas finished rendering in the background, so show it over the old bitmap.
+    @Override
+    public void onRenderProgress(BackingCanvas backingCanvas) {
+        invalidate();
+    }
+
+    // A backing canvas finished rendering in the background, so show its new bitmap.
+    @Override
+    public void onRenderComplete(BackingCanvas backingCanvas) {
+        invalidate();
+    }
 }
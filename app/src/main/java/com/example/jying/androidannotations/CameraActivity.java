@@ -5,11 +5,18 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.hardware.Camera;
 import android.os.Bundle;
+import android.util.Log;
 import android.support.v7.app.ActionBarActivity;
 import android.view.Display;
 import android.view.View;
 import android.widget.FrameLayout;
 
+import com.example.jying.androidannotations.support.FileManager;
+import com.example.jying.androidannotations.support.TiledImageSource;
+
+import java.io.File;
+import java.io.IOException;
+
 
 public class CameraActivity extends ActionBarActivity {
 
@@ -67,20 +74,43 @@ public class CameraActivity extends ActionBarActivity {
                 mPreview.getCamera().takePicture(null, null, new Camera.PictureCallback() {
                     @Override
                     public void onPictureTaken(byte[] data, Camera camera) {
-                        // Create background image:
-                        Bitmap bgBitmap = BitmapFactory.decodeByteArray(data, 0, data.length).copy(Bitmap.Config.ARGB_8888, true);
-
-                        // Downscale background image if necessary
                         Display display = getWindowManager().getDefaultDisplay();
                         int screenWidth = display.getWidth();
-
                         int maxAllowableWidth = (int) Math.min(screenWidth * MAX_WIDTH_RATIO, MAX_WIDTH_PX);
-                        if (bgBitmap.getWidth() > maxAllowableWidth) {
-                            int maxAllowableHeight = (int) ((float) maxAllowableWidth / ((float) bgBitmap.getWidth() / (float) bgBitmap.getHeight()));
-                            bgBitmap = Bitmap.createScaledBitmap(bgBitmap, maxAllowableWidth, maxAllowableHeight, false); // Downscale bitmap
+
+                        if (JotActivity.bgSource != null) {
+                            JotActivity.bgSource.close(); // The last picture's source, which shares the capture file and tile cache.
+                            JotActivity.bgSource = null;
+                        }
+
+                        // Keep the full resolution picture on disk, where it's drawn from in tiles when zoomed in, and decode a downscaled copy as the background image.
+                        TiledImageSource bgSource = null;
+                        Bitmap bgBitmap = null;
+                        try {
+                            File captureFile = FileManager.writeCaptureToCache(getApplicationContext(), data);
+                            File tileDirectory = FileManager.createCaptureTileDirectory(getApplicationContext());
+                            bgSource = new TiledImageSource(captureFile, tileDirectory);
+                            bgBitmap = bgSource.decodeScaled(maxAllowableWidth);
+                        }
+                        catch (IOException e) {
+                            Log.d("CameraActivity", "Unable to save the full resolution picture.");
+                        }
+
+                        if (bgBitmap == null) {
+                            // Fall back to decoding the whole picture in memory, without the full resolution background.
+                            if (bgSource != null) {
+                                bgSource.close();
+                                bgSource = null;
+                            }
+                            bgBitmap = BitmapFactory.decodeByteArray(data, 0, data.length).copy(Bitmap.Config.ARGB_8888, true);
+                            if (bgBitmap.getWidth() > maxAllowableWidth) {
+                                int maxAllowableHeight = (int) ((float) maxAllowableWidth / ((float) bgBitmap.getWidth() / (float) bgBitmap.getHeight()));
+                                bgBitmap = Bitmap.createScaledBitmap(bgBitmap, maxAllowableWidth, maxAllowableHeight, false); // Downscale bitmap
+                            }
                         }
 
                         JotActivity.bgBitmap = bgBitmap;
+                        JotActivity.bgSource = bgSource;
                         Intent intent = new Intent(getApplicationContext(), JotActivity.class);
                         camera.release();
                         startActivity(intent);
@@ -9,6 +9,7 @@ import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.support.v7.app.ActionBar;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -24,6 +25,8 @@ import com.example.jying.androidannotations.distance.MeasuringOverlay;
 import com.example.jying.androidannotations.support.AnnotationLayer;
 import com.example.jying.androidannotations.support.BackingCanvas;
 import com.example.jying.androidannotations.support.LayerDelegate;
+import com.example.jying.androidannotations.support.Metrics;
+import com.example.jying.androidannotations.support.ResolutionGovernor;
 import com.example.jying.androidannotations.support.Subview;
 import com.example.jying.androidannotations.distance.MeasuringLayer;
 import com.example.jying.androidannotations.drawing.DrawingLayer;
@@ -32,6 +35,8 @@ import com.example.jying.androidannotations.textbox.TextboxLayer;
 import com.example.jying.androidannotations.textbox.TextboxLayerDelegate;
 import com.example.jying.androidannotations.textbox.TextboxOverlay;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +45,8 @@ import java.util.Map;
 public abstract class EditActivity extends KeyboardListenerActivity {
     // These keys are the strings used to save state data to the bundle
     private static final String SUBVIEW_KEY = "SubviewKey";
+    private static final String METRICS_FILE_NAME = "metrics.tsv"; // Written to internal storage on pause while metrics are enabled.
+    private static final boolean SHOW_METRICS_HUD = false; // Turn on to print metrics over the annotations in debug builds.
 
     private Menu menu; // Remember the menu; we need to add layers to it when the user creates the layers.
     private Bitmap bgBitmap;
@@ -47,6 +54,7 @@ public abstract class EditActivity extends KeyboardListenerActivity {
     protected AnnotationView annotationView;
     protected HashMap<String, AnnotationLayer> annotationLayers;
     protected ArrayList<BackingCanvas> backingCanvases;
+    protected ResolutionGovernor resolutionGovernor; // Decides the resolution of every backing canvas from the device's memory and redraw speed.
 
     // This bundle is the secureBundle that was passed into onCreateWithSession.  Use this secure bundle to restore the activity in onRestoreInstanceState
     private Bundle secureBundle;
@@ -63,10 +71,42 @@ public abstract class EditActivity extends KeyboardListenerActivity {
 
         annotationLayers = new HashMap<String, AnnotationLayer>();
         backingCanvases = new ArrayList<BackingCanvas>();
+        resolutionGovernor = new ResolutionGovernor();
+        Metrics.getInstance().setEnabled(BuildConfig.DEBUG);
 
         secureBundle = savedInstanceState; // Save off the secure bundle so it can be used in onRestoreInstanceState
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        resolutionGovernor.resetPressure(); // Pressure reported while in the background shouldn't limit resolution for the rest of the session.
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (Metrics.getInstance().isEnabled()) {
+            File metricsFile = new File(getFilesDir(), METRICS_FILE_NAME);
+            try {
+                Metrics.getInstance().dump(metricsFile);
+            }
+            catch (IOException e) {
+                Log.d("EditActivity", "Unable to write metrics to " + metricsFile.getPath());
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        resolutionGovernor.onTrimMemory(level);
+        EdgeDetector.trimMemory(); // Detection buffers are only reused if the picture is searched again.
+        if (annotationView != null) {
+            annotationView.invalidate();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu_edit, menu);
@@ -104,6 +144,10 @@ public abstract class EditActivity extends KeyboardListenerActivity {
         annotationView.getSubview().setSubviewRectangle((Rect) secureBundle.getParcelable(SUBVIEW_KEY));
         restoreAnnotationDataFromBundle(secureBundle, true);
         // Now that data has been restored, redraw the data.
+        for (Map.Entry<String, AnnotationLayer> entry : annotationLayers.entrySet()) {
+            entry.getValue().getOverlay().invalidateDisplayList();
+            entry.getValue().getOverlay().invalidateSpatialIndex();
+        }
         for (BackingCanvas canvas : backingCanvases) {
             canvas.redrawAll();
         }
@@ -131,6 +175,7 @@ public abstract class EditActivity extends KeyboardListenerActivity {
         ViewGroup root = (ViewGroup) findViewById(R.id.edit_root);
         root.removeAllViews();
         annotationView = new AnnotationView(this, image, annotationLayers, backingCanvases);
+        annotationView.setMetricsHudVisible(SHOW_METRICS_HUD && BuildConfig.DEBUG);
         LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, 0);
         params.weight = 1;
         annotationView.setLayoutParams(params);
@@ -140,6 +185,9 @@ public abstract class EditActivity extends KeyboardListenerActivity {
         for (Map.Entry<String, AnnotationLayer> entry : annotationLayers.entrySet()) {
             entry.getValue().getOverlay().setSubview(annotationView.getSubview());
         }
+        for (BackingCanvas canvas : backingCanvases) {
+            canvas.setRenderDelegate(annotationView);
+        }
     }
 
     protected AnnotationLayer createLayer(Class<? extends AnnotationLayer> layerType, BackingCanvas backingCanvas, String key) {
@@ -240,12 +288,12 @@ public abstract class EditActivity extends KeyboardListenerActivity {
                         @Override
                         public void run()
                         {
-                            final EdgeDetector detector = new EdgeDetector(bgBitmap, scale);
-                            overlay.setContourRectangles(detector.getContourRectangles());
+                            final EdgeDetector detector = new EdgeDetector(bgBitmap, scale, overlay.getDetectionPreset());
 
                             runOnUiThread(new Runnable() {
                                 @Override
                                 public void run() {
+                                    overlay.setContourRectangles(detector.getContourRectangles()); // Redraws the backing canvas, which may only be done on the main thread.
                                     progress.dismiss();
                                     if (detector.getContourRectangles().size() == 0) {
                                         onNoContoursFound();
@@ -320,8 +368,11 @@ public abstract class EditActivity extends KeyboardListenerActivity {
         }
 
         layer.getOverlay().setSubview(annotationView.getSubview());
+        backingCanvas.setRenderDelegate(annotationView); // Shows frames rendered in the background once they're ready.
         layer.getOverlay().setBackingCanvas(backingCanvas);
+        layer.setResolutionGovernor(resolutionGovernor);
         backingCanvases.add(backingCanvas);
+        resolutionGovernor.addCanvas(backingCanvas);
 
         annotationLayers.put(key, layer);
         return layer;
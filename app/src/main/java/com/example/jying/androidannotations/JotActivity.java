@@ -1,46 +1,157 @@
 package com.example.jying.androidannotations;
 
+import android.app.ProgressDialog;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.widget.Toast;
 
-import com.example.jying.androidannotations.support.AnnotationLayer;
 import com.example.jying.androidannotations.support.BackingCanvas;
+import com.example.jying.androidannotations.support.ExportDelegate;
+import com.example.jying.androidannotations.support.ImageExporter;
+import com.example.jying.androidannotations.support.TiledImageSource;
 import com.example.jying.androidannotations.distance.MeasuringLayer;
 import com.example.jying.androidannotations.drawing.DrawingLayer;
 import com.example.jying.androidannotations.textbox.TextboxLayer;
 
-import java.util.Map;
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 
 /**
  * Created by jying on 7/3/2015.
  */
 public class JotActivity extends EditActivity {
 
+    private static final String EXPORT_FILE_PREFIX = "annotations_";
+    private static final int EXPORT_PROGRESS_MAX = 100;
+
     public static Bitmap bgBitmap;
+    public static TiledImageSource bgSource; // The full resolution picture behind bgBitmap, or null if it couldn't be saved.
+
+    private ProgressDialog exportProgress; // Shown while an export runs, or null.
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setAnnotationBackground(bgBitmap);
+        annotationView.setTiledImageSource(bgSource);
         BackingCanvas canvas = new BackingCanvas(bgBitmap.getWidth(), bgBitmap.getHeight());
-        canvas.setResizeRatio(.5f);
+        canvas.setLayerCaching(true); // Drawing and measuring share this canvas, so keep them in separate layers to avoid replaying one while editing the other.
+        canvas.setAsyncRendering(true);
+        canvas.setProgressiveRendering(true);
         createLayer(DrawingLayer.class, canvas, "Draw Mode").setActive(savedInstanceState == null);
         createLayer(MeasuringLayer.class, canvas, "Measure Mode");
 
         BackingCanvas resizedCanvas = new BackingCanvas(bgBitmap.getWidth(), bgBitmap.getHeight());
-        resizedCanvas.setResizeRatio(.5f);
+        resizedCanvas.setAsyncRendering(true);
+        resizedCanvas.setProgressiveRendering(true);
         createLayer(TextboxLayer.class, resizedCanvas, "Text Mode");
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        dismissExportProgress(); // An export keeps running without the activity, and still reports its result with a toast.
+        if (isFinishing() && (bgSource != null)) {
+            // The picture won't be shown again.  Tiles are kept when the activity is only being recreated, such as on rotation.
+            bgSource.close();
+            bgSource.deleteCache();
+            bgSource = null;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (bgSource != null) {
+            bgSource.trimMemory(); // Tiles can be reloaded from disk.
+        }
+    }
+
+    // Saves the picture and every annotation to a PNG at the picture's full resolution.  The annotations can keep being edited while it's written.
     @Override
     protected void submitAnnotations() {
-        for (Map.Entry<String, AnnotationLayer> entry : annotationLayers.entrySet()) {
-            // Do something to save off the image.
+        ProgressDialog progress = new ProgressDialog(this);
+        progress.setTitle(getResources().getString(R.string.export_progress_title));
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(EXPORT_PROGRESS_MAX);
+        progress.setCancelable(false);
+
+        String filename = EXPORT_FILE_PREFIX + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        final ImageExporter exporter = new ImageExporter(getApplicationContext(), getAnnotationBackground(), bgSource, backingCanvases, filename, new ExportProgress(this));
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, getResources().getString(R.string.modal_decline), new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                exporter.cancel();
+            }
+        });
+        if (!exporter.start()) {
+            Toast.makeText(this, getResources().getString(R.string.export_busy), Toast.LENGTH_SHORT).show(); // Earlier pictures are still being saved.
+            return;
         }
-        for (BackingCanvas canvas : backingCanvases) {
-            canvas.setResizeRatio(1);
+        dismissExportProgress();
+        exportProgress = progress;
+        progress.show();
+    }
+
+    private void dismissExportProgress() {
+        if (exportProgress != null) {
+            exportProgress.dismiss();
+            exportProgress = null;
+        }
+    }
+
+    // Shows an export's progress on the activity that started it, if it's still around.  The activity is only weakly held, so a long export can't keep it alive.
+    private static class ExportProgress implements ExportDelegate {
+        private final Context applicationContext;
+        private final WeakReference<JotActivity> activityReference;
+
+        ExportProgress(JotActivity activity) {
+            applicationContext = activity.getApplicationContext();
+            activityReference = new WeakReference<JotActivity>(activity);
+        }
+
+        @Override
+        public void onExportProgress(float fraction) {
+            JotActivity activity = getActivity();
+            if ((activity != null) && (activity.exportProgress != null)) {
+                activity.exportProgress.setProgress((int) (fraction * EXPORT_PROGRESS_MAX));
+            }
+        }
+
+        @Override
+        public void onExportComplete(File file) {
+            finish(R.string.export_complete);
+        }
+
+        @Override
+        public void onExportCancelled() {
+            finish(0);
+        }
+
+        @Override
+        public void onExportFailed() {
+            finish(R.string.export_failed);
+        }
+
+        // Dismisses the progress dialog and shows a message, unless messageId is 0.
+        private void finish(int messageId) {
+            JotActivity activity = getActivity();
+            if (activity != null) {
+                activity.dismissExportProgress();
+            }
+            if (messageId != 0) {
+                Toast.makeText(applicationContext, applicationContext.getResources().getString(messageId), Toast.LENGTH_SHORT).show();
+            }
+        }
+
+        // The activity, unless it's gone or on its way out.
+        private JotActivity getActivity() {
+            JotActivity activity = activityReference.get();
+            return ((activity == null) || activity.isFinishing()) ? null : activity;
         }
-        annotationView.invalidate();
     }
 }
@@ -4,15 +4,13 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.example.jying.androidannotations.AnnotationView;
 import com.example.jying.androidannotations.support.Annotation;
 
-import org.opencv.core.MatOfPoint;
-import org.opencv.imgproc.Imgproc;
-
 import java.util.Arrays;
 
 /**
@@ -32,15 +30,14 @@ public class ContourRectangle implements Comparable<ContourRectangle>, Annotatio
     private double longDimCm;
     private boolean selected;
 
-    public ContourRectangle(MatOfPoint rectangle, float scale) {
-        org.opencv.core.Point[] openCVPoints = rectangle.toArray();
-
-        this.area = Math.abs(Imgproc.contourArea(rectangle));
-        this.points = new Point[openCVPoints.length];
+    // A rectangle from four corners packed as x, y pairs, starting at the given offset.
+    public ContourRectangle(int[] corners, int offset, float scale) {
+        this.area = Math.abs(QuadFilter.getArea(corners, offset / 2, 4));
+        this.points = new Point[4];
         this.selected = false;
 
-        for (int index = 0; index < openCVPoints.length; index++) {
-            points[index] = new Point((int) (openCVPoints[index].x / scale), (int) (openCVPoints[index].y / scale));
+        for (int index = 0; index < points.length; index++) {
+            points[index] = new Point((int) (corners[offset + index * 2] / scale), (int) (corners[offset + index * 2 + 1] / scale));
         }
         setContourPaint();
     }
@@ -59,6 +56,16 @@ public class ContourRectangle implements Comparable<ContourRectangle>, Annotatio
         }
     }
 
+    public Rect getBounds(int bgWidth, int bgHeight, float resizeRatio) {
+        Rect bounds = new Rect(points[0].x, points[0].y, points[0].x, points[0].y);
+        for (Point point : points) {
+            bounds.union(point.x, point.y);
+        }
+        int strokeOutset = AnnotationView.convertDpToPx(STROKE_WIDTH_DP) / 2 + 1;
+        bounds.inset(-strokeOutset, -strokeOutset);
+        return bounds;
+    }
+
     public void setSelected(boolean selected) {
         this.selected = selected;
     }
@@ -0,0 +1,120 @@
+package com.example.jying.androidannotations.distance;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+import com.example.jying.androidannotations.support.BitmapPool;
+
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.utils.MatScope;
+
+/**
+ * Moves the corners of quads found on a coarse pyramid level onto the corners in the picture, one level at a time.  At each level, only a small
+ * window around each corner is drawn from the picture and searched, so refining costs the same however large the picture is.
+ */
+class CornerRefiner {
+
+    private static final int WINDOW_SIZE = 32; // The side of the window drawn around each corner, in pixels of the level being refined.
+    private static final Size SEARCH_HALF_SIZE = new Size(5, 5); // cornerSubPix searches the 11x11 pixels around its starting point.
+    private static final Size NO_ZERO_ZONE = new Size(-1, -1);
+    private static final TermCriteria CRITERIA = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.03);
+    private static final double MAX_SHIFT = 6; // Corners that would move further than this at one level stay where the coarser level put them.
+
+    private final Bitmap picture;
+    private final float scale; // The scale of level 0, relative to the picture.
+    private final int levels; // The number of levels the corners start below level 0.
+
+    private final Bitmap window;
+    private final Canvas windowCanvas;
+    private final Matrix windowMatrix = new Matrix();
+    private final Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Mat windowRgba, windowGray;
+    private final MatOfPoint2f corner;
+    private long processedPixels;
+
+    CornerRefiner(Bitmap picture, float scale, int levels, MatScope scope) {
+        this.picture = picture;
+        this.scale = scale;
+        this.levels = levels;
+        window = BitmapPool.getInstance().acquire(WINDOW_SIZE, WINDOW_SIZE, Bitmap.Config.ARGB_8888);
+        windowCanvas = new Canvas(window);
+        windowRgba = scope.newMat(WINDOW_SIZE, WINDOW_SIZE, CvType.CV_8UC4);
+        windowGray = scope.newMat(WINDOW_SIZE, WINDOW_SIZE, CvType.CV_8UC1);
+        corner = scope.track(new MatOfPoint2f());
+    }
+
+    // Refines packed x, y corners found on the coarsest level, and returns them in pixels of level 0.
+    int[] refine(int[] coarseCorners) {
+        double[] corners = new double[coarseCorners.length];
+        for (int index = 0; index < corners.length; index++) {
+            corners[index] = coarseCorners[index];
+        }
+
+        for (int level = levels - 1; level >= 0; level--) {
+            float levelScale = scale / (1 << level);
+            int levelWidth = (int) (picture.getWidth() * levelScale);
+            int levelHeight = (int) (picture.getHeight() * levelScale);
+            for (int index = 0; index < corners.length; index += 2) {
+                corners[index] *= 2;
+                corners[index + 1] *= 2;
+                if (levelWidth >= WINDOW_SIZE && levelHeight >= WINDOW_SIZE) {
+                    refineCorner(corners, index, levelScale, levelWidth, levelHeight);
+                }
+            }
+        }
+
+        int[] refined = new int[corners.length];
+        for (int index = 0; index < refined.length; index++) {
+            refined[index] = (int) Math.round(corners[index]);
+        }
+        return refined;
+    }
+
+    // The pixels drawn into windows so far.
+    long getProcessedPixels() {
+        return processedPixels;
+    }
+
+    // Returns the window to the pool.  Its Mats go with the scope.
+    void release() {
+        BitmapPool.getInstance().release(window);
+    }
+
+    private void refineCorner(double[] corners, int index, float levelScale, int levelWidth, int levelHeight) {
+        double x = corners[index], y = corners[index + 1];
+        // Keep the window inside the level, so its edges never look like corners.
+        int left = clamp((int) Math.round(x) - WINDOW_SIZE / 2, 0, levelWidth - WINDOW_SIZE);
+        int top = clamp((int) Math.round(y) - WINDOW_SIZE / 2, 0, levelHeight - WINDOW_SIZE);
+
+        windowMatrix.setScale(levelScale, levelScale);
+        windowMatrix.postTranslate(-left, -top);
+        windowCanvas.drawBitmap(picture, windowMatrix, filterPaint);
+        processedPixels += WINDOW_SIZE * WINDOW_SIZE;
+
+        Utils.bitmapToMat(window, windowRgba);
+        Imgproc.cvtColor(windowRgba, windowGray, Imgproc.COLOR_RGBA2GRAY);
+        corner.fromArray(new Point(x - left, y - top));
+        Imgproc.cornerSubPix(windowGray, corner, SEARCH_HALF_SIZE, NO_ZERO_ZONE, CRITERIA);
+        Point refined = corner.toArray()[0];
+
+        double dx = refined.x + left - x;
+        double dy = refined.y + top - y;
+        if (dx * dx + dy * dy <= MAX_SHIFT * MAX_SHIFT) {
+            corners[index] = refined.x + left;
+            corners[index + 1] = refined.y + top;
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.jying.androidannotations.distance;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.utils.MatScope;
+import org.opencv.utils.PackedContours;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The stages of one square detection: blur, channel split, edges, contours and the quad filter.  Each stage's output is computed once, by the first
+ * thread to ask for it, and shared with every later request with the same parameters.  Outputs are only read once they're computed, so stages of
+ * different planes and edge methods can be requested from several threads at once.  Every output belongs to the graph's MatScope, and is released
+ * or pooled when the scope is closed.
+ */
+class DetectionGraph {
+
+    static final int CANNY = -1; // The edge method that finds edges with Canny rather than by thresholding.
+
+    private final Mat source; // The RGBA image being searched.  Not owned by the graph.
+    private final DetectionPreset preset;
+    private final MatScope scope;
+    private final int blurSize; // The preset's blur, narrowed for pyramid levels, whose pixels already cover more of the picture.
+    private final double minQuadArea;
+
+    private final HashMap<String, FutureTask<?>> stages = new HashMap<>(); // Guarded by itself.
+    private final Map<String, Long> stageNanos = new LinkedHashMap<>(); // Time spent in each stage, summed over every plane and edge method.  Guarded by itself.
+
+    // The source is the given number of pyramid levels below the scale the preset's parameters are meant for.
+    DetectionGraph(Mat source, DetectionPreset preset, int levels, MatScope scope) {
+        this.source = source;
+        this.preset = preset;
+        this.scope = scope;
+        this.blurSize = Math.max(3, (preset.getBlurSize() >> levels) | 1);
+        this.minQuadArea = DetectionPreset.MIN_QUAD_AREA / (1 << (2 * levels));
+    }
+
+    Mat getBlurred() throws InterruptedException {
+        return memoize("blur", new Callable<Mat>() {
+            @Override
+            public Mat call() {
+                long startNanos = System.nanoTime();
+                Mat blurred = scope.newMat(source.rows(), source.cols(), source.type());
+                Imgproc.medianBlur(source, blurred, blurSize);
+                recordStage("medianBlur", startNanos);
+                return blurred;
+            }
+        });
+    }
+
+    Mat getPlane(final int channel) throws InterruptedException {
+        return memoize("plane:" + channel, new Callable<Mat>() {
+            @Override
+            public Mat call() throws InterruptedException {
+                Mat blurred = getBlurred();
+                long startNanos = System.nanoTime();
+                Mat plane = scope.newMat(blurred.rows(), blurred.cols(), CvType.CV_8UC1);
+                MatOfInt fromTo = new MatOfInt(channel, 0);
+                try {
+                    Core.mixChannels(Collections.singletonList(blurred), Collections.singletonList(plane), fromTo);
+                }
+                finally {
+                    fromTo.release();
+                }
+                recordStage("mixChannels", startNanos);
+                return plane;
+            }
+        });
+    }
+
+    // The edges of a plane, found with Canny if the method is CANNY, or else by thresholding to zero at the method's level.
+    Mat getEdges(final int channel, final int method) throws InterruptedException {
+        return memoize("edges:" + channel + ":" + method, new Callable<Mat>() {
+            @Override
+            public Mat call() throws InterruptedException {
+                Mat plane = getPlane(channel);
+                Mat edges = scope.newMat(plane.rows(), plane.cols(), CvType.CV_8UC1);
+                if (method == CANNY) {
+                    long startNanos = System.nanoTime();
+                    Imgproc.Canny(plane, edges, DetectionPreset.CANNY_LOW_THRESHOLD, DetectionPreset.CANNY_HIGH_THRESHOLD);
+                    recordStage("canny", startNanos);
+
+                    startNanos = System.nanoTime();
+                    Mat kernel = Mat.ones(new Size(DetectionPreset.DILATE_KERNEL_SIZE, DetectionPreset.DILATE_KERNEL_SIZE), 0);
+                    try {
+                        Imgproc.dilate(edges, edges, kernel);
+                    }
+                    finally {
+                        kernel.release();
+                    }
+                    recordStage("dilate", startNanos);
+                }
+                else {
+                    long startNanos = System.nanoTime();
+                    Imgproc.threshold(plane, edges, method, 255, Imgproc.THRESH_TOZERO);
+                    recordStage("threshold", startNanos);
+                }
+                return edges;
+            }
+        });
+    }
+
+    // The contours of one plane's edges, packed into Java arrays.  Each set is found from scratch, so contours of one method never carry over into the next.
+    // Finding contours overwrites the edges, so they're recycled for the next edge stage to reuse.
+    PackedContours getContours(final int channel, final int method) throws InterruptedException {
+        return memoize("contours:" + channel + ":" + method, new Callable<PackedContours>() {
+            @Override
+            public PackedContours call() throws InterruptedException {
+                Mat edges = getEdges(channel, method);
+                long startNanos = System.nanoTime();
+                PackedContours contours = new PackedContours();
+                Mat hierarchy = new Mat();
+                try {
+                    Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+                }
+                finally {
+                    hierarchy.release();
+                }
+                scope.recycle(edges);
+                recordStage("findContours", startNanos);
+                return contours;
+            }
+        });
+    }
+
+    // The corners of the contours of one plane's edges that approximate to large, convex, nearly square quadrilaterals, packed as x, y pairs.
+    int[] getQuads(final int channel, final int method) throws InterruptedException {
+        return memoize("quads:" + channel + ":" + method, new Callable<int[]>() {
+            @Override
+            public int[] call() throws InterruptedException {
+                PackedContours contours = getContours(channel, method);
+                long startNanos = System.nanoTime();
+                int[] quads = new QuadFilter(minQuadArea).filter(contours);
+                recordStage("approximateQuads", startNanos);
+                return quads;
+            }
+        });
+    }
+
+    void recordStage(String stage, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        synchronized (stageNanos) {
+            Long total = stageNanos.get(stage);
+            stageNanos.put(stage, (total == null) ? nanos : total + nanos);
+        }
+    }
+
+    // A copy of the time spent in each stage so far, in the order the stages first finished.
+    Map<String, Long> getStageNanos() {
+        synchronized (stageNanos) {
+            return new LinkedHashMap<>(stageNanos);
+        }
+    }
+
+    // Forgets every stage output, ahead of the scope being closed.  Only call once no thread is still working on the graph.
+    void release() {
+        synchronized (stages) {
+            stages.clear();
+        }
+    }
+
+    // Computes the stage on this thread if no other thread has asked for it yet, or else waits for that thread's result.
+    @SuppressWarnings("unchecked")
+    private <T> T memoize(String key, Callable<T> stage) throws InterruptedException {
+        FutureTask<T> task;
+        boolean owner = false;
+        synchronized (stages) {
+            task = (FutureTask<T>) stages.get(key);
+            if (task == null) {
+                task = new FutureTask<>(stage);
+                stages.put(key, task);
+                owner = true;
+            }
+        }
+        if (owner) {
+            task.run(); // Run inline, rather than on the pool, so threads waiting on each other's stages can never starve the pool.
+        }
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException("Detection stage " + key + " failed", cause);
+        }
+    }
+}
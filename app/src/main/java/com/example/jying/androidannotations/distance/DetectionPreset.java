@@ -0,0 +1,77 @@
+package com.example.jying.androidannotations.distance;
+
+/**
+ * Chooses which stages of square detection run, and with what parameters.  Each color plane is searched with Canny edges, then with each threshold.
+ * FAST searches one plane with a smaller blur, BALANCED searches every plane with Canny, and THOROUGH also thresholds every plane at several levels.
+ * FAST and BALANCED search a coarse pyramid level and refine the corners they find at the finer levels; THOROUGH searches the full image.
+ */
+public class DetectionPreset {
+
+    public static final DetectionPreset FAST = new DetectionPreset("fast", 5, new int[]{1}, true, new int[0], true); // Green carries most of the luminance.
+    public static final DetectionPreset BALANCED = new DetectionPreset("balanced", 9, new int[]{0, 1, 2}, true, new int[0], true);
+    public static final DetectionPreset THOROUGH = new DetectionPreset("thorough", 9, new int[]{0, 1, 2}, true, new int[]{85, 170}, false);
+
+    // Edge parameters shared by every preset
+    static final double CANNY_LOW_THRESHOLD = 20;
+    static final double CANNY_HIGH_THRESHOLD = 30;
+    static final int DILATE_KERNEL_SIZE = 3; // Dilating helps to remove potential holes between edge segments.
+
+    // Quad filter parameters shared by every preset
+    static final double APPROXIMATION_EPSILON = 0.02; // How far (as a fraction of the contour's perimeter) the approximated polygon may stray from the contour.
+    static final double MIN_QUAD_AREA = 1000; // In pixels of the scaled image, before any pyramid levels are taken off.
+    static final double MAX_CORNER_COSINE = 0.3; // Corners must be within about 17 degrees of square.
+
+    private final String name;
+    private final int blurSize; // The aperture of the median blur.  Must be odd.
+    private final int[] colorPlanes; // The planes of the RGBA image to search, in the order they're searched.
+    private final boolean canny; // Whether each plane is searched with Canny edges, which catch squares with gradient shading.
+    private final int[] thresholds; // The levels each plane is thresholded at and searched, after Canny.
+    private final boolean coarseToFine; // Whether squares are found on a downsampled pyramid level, with only their corners refined at full scale.
+
+    private DetectionPreset(String name, int blurSize, int[] colorPlanes, boolean canny, int[] thresholds, boolean coarseToFine) {
+        this.name = name;
+        this.blurSize = blurSize;
+        this.colorPlanes = colorPlanes;
+        this.canny = canny;
+        this.thresholds = thresholds;
+        this.coarseToFine = coarseToFine;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBlurSize() {
+        return blurSize;
+    }
+
+    public boolean isCoarseToFine() {
+        return coarseToFine;
+    }
+
+    public int getColorPlaneCount() {
+        return colorPlanes.length;
+    }
+
+    public int getColorPlane(int index) {
+        return colorPlanes[index];
+    }
+
+    // The number of ways each plane is searched: Canny, if enabled, and then each threshold.
+    public int getEdgeMethodCount() {
+        return (canny ? 1 : 0) + thresholds.length;
+    }
+
+    // The threshold of the given edge method, or DetectionGraph.CANNY for Canny edges.
+    public int getEdgeMethod(int index) {
+        if (canny) {
+            return (index == 0) ? DetectionGraph.CANNY : thresholds[index - 1];
+        }
+        return thresholds[index];
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -1,23 +1,35 @@
 package com.example.jying.androidannotations.distance;
 
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.util.Log;
 
+import com.example.jying.androidannotations.support.BitmapPool;
+import com.example.jying.androidannotations.support.Metrics;
+
 import org.opencv.android.OpenCVLoader;
 import org.opencv.android.Utils;
-import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfInt;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
-import org.opencv.core.Point;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
+import org.opencv.utils.MatPool;
+import org.opencv.utils.MatScope;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /* Class: EdgeDetector
  * Author: Varun Ganesh
@@ -26,7 +38,8 @@ import java.util.List;
  * Takes the input image and identifies the area of interest i.e. the borders
  * of the contact card and performs a cropping operation of the area
  * Algorithm uses a combination of Canny Detector and thresholding at multiple
- * levels to detect card edges.
+ * levels to detect card edges.  Large pictures are searched on a coarse pyramid
+ * level, and only the corners found there are refined at full scale.
  *
  * See original at: https://code.google.com/p/scope-ocr/source/browse/trunk/+scope-ocr+--username+aravindh.shankar.91@gmail.com/Prototype/Scope/src/com/example/scope/EdgeDetection.java?r=22
  */
@@ -35,125 +48,292 @@ public class EdgeDetector {
 
     private static final String TAG = "EdgeDetector.java";
 
+    // Time spent in each stage of one detection, summed over every color plane and edge method searched.  Searches run in parallel, so stages can add up to more than the total.
+    private static final Metrics.Histogram PREPARE_HISTOGRAM = getStageHistogram("prepare");
+    private static final Metrics.Histogram DEDUPLICATE_HISTOGRAM = getStageHistogram("deduplicate");
+    private static final Metrics.Histogram TOTAL_HISTOGRAM = getStageHistogram("total");
+    private static final Metrics.Histogram PYR_DOWN_HISTOGRAM = getStageHistogram("pyrDown");
+    private static final Metrics.Histogram REFINE_HISTOGRAM = getStageHistogram("refineCorners");
+    private static final Metrics.Counter NATIVE_BYTES_COUNTER = getCounter("nativeBytes"); // Native memory held by each detection's Mats once every stage has run, summed over detections.  Divide by the count of "total" for the mean.
+    private static final Metrics.Counter PIXELS_COUNTER = getCounter("pixels"); // Pixels of the scaled picture, the level searched and the refinement windows, summed over detections.
+    private static final String[] GRAPH_STAGES = {"medianBlur", "mixChannels", "canny", "dilate", "threshold", "findContours", "approximateQuads"};
+    private static final Metrics.Histogram[] GRAPH_STAGE_HISTOGRAMS = new Metrics.Histogram[GRAPH_STAGES.length];
+
+    private static final int MAX_WORKER_THREADS = 3; // One per color plane.
+    private static final long MAT_POOL_BYTES = 32 * 1024 * 1024; // Enough for the image-sized buffers of one detection at the default scale.
+    private static final int COARSE_MAX_DIMENSION = 640; // Coarse-to-fine presets search the first pyramid level whose longest side is at most this.
+    private static final int MAX_PYRAMID_LEVELS = 4;
+
+    private static ExecutorService workerPool; // Shared by every detection.  Started on first use.
+    private static final MatPool matPool = new MatPool(MAT_POOL_BYTES); // Image-sized buffers kept between detections, since the same picture is usually searched again.
+
     private float scale;
+    private int width, height; // The size of the picture at the scale, which rectangles are deduplicated and corners are refined at.
+    private int levels; // The number of pyramid levels below the scale that squares are searched for at.
+    private DetectionPreset preset;
     private ArrayList<ContourRectangle> contourRectangles = new ArrayList<>();;
-    private Mat srcMat = new Mat();
+    private Map<String, Long> stageNanos = new LinkedHashMap<>();
+    private long nativeBytes;
+    private long processedPixels;
     private Bitmap srcImage = null;
 
     static {
         if (!OpenCVLoader.initDebug()) {
             Log.e(TAG, "Unable to initialize openCV!");
         }
+        for (int index = 0; index < GRAPH_STAGES.length; index++) {
+            GRAPH_STAGE_HISTOGRAMS[index] = getStageHistogram(GRAPH_STAGES[index]);
+        }
     }
 
     public EdgeDetector(Bitmap img, float scale) {
+        this(img, scale, DetectionPreset.BALANCED);
+    }
+
+    public EdgeDetector(Bitmap img, float scale, DetectionPreset preset) {
+        long startNanos = System.nanoTime();
         this.scale = scale;
-        if (scale != 1){
-            srcImage = Bitmap.createScaledBitmap(img, (int) (img.getWidth() * scale), (int) (img.getHeight() * scale), false);
+        this.preset = preset;
+        width = (int) (img.getWidth() * scale);
+        height = (int) (img.getHeight() * scale);
+        levels = preset.isCoarseToFine() ? getPyramidLevels(width, height) : 0;
+        if (levels > 0) {
+            // Scale straight to the level above the one searched, so pyrDown only has to take the last step.
+            int divisor = 1 << (levels - 1);
+            srcImage = acquireFilteredScaled(img, width / divisor, height / divisor);
+        }
+        else if (scale != 1){
+            srcImage = BitmapPool.getInstance().acquireScaled(img, width, height);
         }
         else {
             srcImage = img;
         }
 
-        srcMat.release();
-        Utils.bitmapToMat(srcImage, srcMat);
-        processEdges();
-        srcImage = null; // Release image reference
+        MatScope scope = new MatScope(matPool); // Every Mat of this detection is released, or pooled, once it's done.
+        try {
+            Mat srcMat = scope.newMat(srcImage.getHeight(), srcImage.getWidth(), CvType.CV_8UC4);
+            Utils.bitmapToMat(srcImage, srcMat);
+            processedPixels = srcMat.total();
+            recordStage("prepare", PREPARE_HISTOGRAM, startNanos);
+            if (levels > 0) {
+                long pyrDownNanos = System.nanoTime();
+                Mat coarseMat = scope.newMat((srcMat.rows() + 1) / 2, (srcMat.cols() + 1) / 2, CvType.CV_8UC4);
+                Imgproc.pyrDown(srcMat, coarseMat);
+                scope.recycle(srcMat);
+                srcMat = coarseMat;
+                processedPixels += srcMat.total();
+                recordStage("pyrDown", PYR_DOWN_HISTOGRAM, pyrDownNanos);
+            }
+            processEdges(srcMat, img, scope);
+            nativeBytes = scope.getNativeBytes();
+            NATIVE_BYTES_COUNTER.add(nativeBytes);
+            PIXELS_COUNTER.add(processedPixels);
+        }
+        finally {
+            scope.close();
+            if (srcImage != img) {
+                BitmapPool.getInstance().release(srcImage); // The scaled copy is only needed until it's converted.
+            }
+            srcImage = null; // Release image reference
+        }
+        recordStage("total", TOTAL_HISTOGRAM, startNanos);
     }
 
     public ArrayList<ContourRectangle> getContourRectangles() {
         return contourRectangles;
     }
 
-    // This method was adapted from an OpenCV example.  I did not write this method, and it hasn't been brought up to coding standards.
-    private void processEdges() {
-        Mat blurred = new Mat();
-        srcMat.copyTo(blurred);
-
-        Imgproc.medianBlur(srcMat, blurred, 9);
-
-        Mat gray0 = new Mat(blurred.size(), blurred.type());
-        Imgproc.cvtColor(gray0, gray0, Imgproc.COLOR_RGB2GRAY);
-        Mat gray = new Mat();
-
-        List<MatOfPoint> contours = new ArrayList<>();
-        List<MatOfPoint> squares = new ArrayList<>();
-
-        // find squares in every color plane of the image
-        for (int c = 0; c < 3; c++) {
-            int ch[] = {c, 0};
-            MatOfInt fromto = new MatOfInt(ch);
-            List<Mat> blurredlist = new ArrayList<Mat>();
-            List<Mat> graylist = new ArrayList<Mat>();
-            blurredlist.add(0, blurred);
-            graylist.add(0, gray0);
-            Core.mixChannels(blurredlist, graylist, fromto);
-            gray0 = graylist.get(0);
-            // Try several threshold levels
-            int threshold_level = 2;
-            for (int thresholdLevel = 0; thresholdLevel < threshold_level; thresholdLevel++) {
-                // Use Canny instead of zero threshold level!  Canny helps to catch squares with gradient shading
-
-                if (thresholdLevel >= 0) {
-                    Imgproc.Canny(gray0, gray, 20, 30);
-                    Imgproc.dilate(gray, gray, Mat.ones(new Size(3, 3), 0)); // Dilate helps to remove potential holes between edge segments
-                }
-                else {
-                    int thresh = (thresholdLevel + 1) * 255 / threshold_level;
-                    Imgproc.threshold(gray0, gray, thresh, 255, Imgproc.THRESH_TOZERO);
-                }
+    public DetectionPreset getPreset() {
+        return preset;
+    }
 
-                // Find contours and store them in a list
-                Imgproc.findContours(gray, contours, new Mat(), 1, 2);
-
-                MatOfPoint2f approx = new MatOfPoint2f();
-                MatOfPoint2f mMOP2f1 = new MatOfPoint2f();
-                MatOfPoint mMOP = new MatOfPoint();
-                for (int i = 0; i < contours.size(); i++) {
-                    contours.get(i).convertTo(mMOP2f1, CvType.CV_32FC2);
-                    Imgproc.approxPolyDP(mMOP2f1, approx, Imgproc.arcLength(mMOP2f1, true) * 0.02, true);
-                    approx.convertTo(mMOP, CvType.CV_32S);
-
-                    if (approx.rows() == 4 && Math.abs(Imgproc.contourArea(approx)) > 1000 && Imgproc.isContourConvex(mMOP)) {
-                        double maxCosine = 0;
-                        Point[] list = approx.toArray();
-                        for (int j = 2; j < 5; j++) {
-                            double cosine =Math.abs(angle(list[j%4], list[j-2], list[j-1]));
-                            maxCosine = Math.max(maxCosine, cosine);
+    // The time spent in each stage of this detection, in nanoseconds, keyed by stage name.  Stages the preset skipped are left out.
+    public Map<String, Long> getStageNanos() {
+        return stageNanos;
+    }
+
+    // The number of pyramid levels below the scale that squares were searched for at.  Zero if the scaled picture was searched.
+    public int getPyramidLevels() {
+        return levels;
+    }
+
+    // The pixels of every image this detection processed: the scaled picture, the level searched and the windows corners were refined in.
+    public long getProcessedPixels() {
+        return processedPixels;
+    }
+
+    // The native memory this detection's Mats held once every stage had run.
+    public long getNativeBytes() {
+        return nativeBytes;
+    }
+
+    // Frees the buffers kept for later detections.
+    public static void trimMemory() {
+        matPool.clear();
+    }
+
+    // This method was adapted from an OpenCV example.
+    // Every plane and edge method the preset chooses is searched for squares on the worker pool.  The searches share one stage graph, so a blur, plane
+    // or set of edges that several of them need is only computed once.  Their squares are merged in the order the preset lists them, so the
+    // deduplicated and sorted rectangles don't depend on which search finishes first.
+    // When the source is a coarse pyramid level, only the corners of the unique squares are refined against the finer levels.
+    private void processEdges(Mat srcMat, Bitmap img, MatScope scope) {
+        final DetectionGraph graph = new DetectionGraph(srcMat, preset, levels, scope);
+        ExecutorService executor = getWorkerPool();
+        List<Future<int[]>> searches = new ArrayList<Future<int[]>>();
+        List<int[]> squares = new ArrayList<>();
+        try {
+            for (int planeIndex = 0; planeIndex < preset.getColorPlaneCount(); planeIndex++) {
+                final int channel = preset.getColorPlane(planeIndex);
+                for (int methodIndex = 0; methodIndex < preset.getEdgeMethodCount(); methodIndex++) {
+                    final int method = preset.getEdgeMethod(methodIndex);
+                    searches.add(executor.submit(new Callable<int[]>() {
+                        @Override
+                        public int[] call() throws InterruptedException {
+                            return graph.getQuads(channel, method);
                         }
+                    }));
+                }
+            }
 
-                        if (maxCosine < 0.3 ) {
-                            MatOfPoint temp = new MatOfPoint();
-                            approx.convertTo(temp, CvType.CV_32S);
-                            squares.add(temp);
+            for (Future<int[]> search : searches) {
+                squares.add(search.get());
+            }
+
+            // Save only unique contour rectangles.  Coarse corners are scaled up for comparison, so the tolerances are the same at every level.
+            long dedupeNanos = System.nanoTime();
+            List<int[]> uniqueCorners = new ArrayList<>();
+            for (int[] quads : squares) {
+                for (int offset = 0; offset < quads.length; offset += 8) {
+                    int[] corners = new int[8];
+                    for (int index = 0; index < corners.length; index++) {
+                        corners[index] = quads[offset + index] << levels;
+                    }
+                    ContourRectangle newRect = new ContourRectangle(corners, 0, scale);
+                    boolean add = true;
+                    for (ContourRectangle existingRect : contourRectangles) {
+                        if (newRect.equals(existingRect, width * height)) {
+                            add = false;
                         }
                     }
+                    if (add) {
+                        contourRectangles.add(newRect);
+                        uniqueCorners.add(Arrays.copyOfRange(quads, offset, offset + 8));
+                    }
                 }
             }
-        }
+            stageNanos.putAll(graph.getStageNanos());
+            recordStage("deduplicate", DEDUPLICATE_HISTOGRAM, dedupeNanos);
 
-        // Save only unique contour rectangles:
-        for (int index = 0; index < squares.size(); index++) {
-            ContourRectangle newRect = new ContourRectangle(squares.get(index), scale);
-            boolean add = true;
-            for (ContourRectangle existingRect : contourRectangles) {
-                if (newRect.equals(existingRect, srcImage.getWidth() * srcImage.getHeight())) {
-                    add = false;
+            if (levels > 0) {
+                long refineNanos = System.nanoTime();
+                CornerRefiner refiner = new CornerRefiner(img, scale, levels, scope);
+                try {
+                    contourRectangles.clear();
+                    for (int[] corners : uniqueCorners) {
+                        contourRectangles.add(new ContourRectangle(refiner.refine(corners), 0, scale));
+                    }
                 }
+                finally {
+                    refiner.release();
+                }
+                processedPixels += refiner.getProcessedPixels();
+                recordStage("refineCorners", REFINE_HISTOGRAM, refineNanos);
+            }
+            Collections.sort(contourRectangles, Collections.reverseOrder());
+        }
+        catch (InterruptedException e) {
+            for (Future<int[]> search : searches) {
+                search.cancel(false); // Skips searches that haven't started.  Running ones are left to finish, since the graph's Mats may only be released once no search is using them.
             }
-            if (add) {
-                contourRectangles.add(newRect);
+            waitForSearches(searches);
+            Thread.currentThread().interrupt();
+            contourRectangles.clear(); // Give up without any rectangles.
+        }
+        catch (ExecutionException e) {
+            waitForSearches(searches);
+            throw new RuntimeException("Unable to search for squares", e.getCause());
+        }
+        finally {
+            graph.release();
+        }
+
+        for (int index = 0; index < GRAPH_STAGES.length; index++) {
+            Long nanos = stageNanos.get(GRAPH_STAGES[index]);
+            if (nanos != null) {
+                GRAPH_STAGE_HISTOGRAMS[index].record(nanos);
             }
         }
-        Collections.sort(contourRectangles, Collections.reverseOrder());
     }
 
-    private double angle(Point pt1, Point pt2, Point pt0) {
-        double dx1 = pt1.x - pt0.x;
-        double dy1 = pt1.y - pt0.y;
-        double dx2 = pt2.x - pt0.x;
-        double dy2 = pt2.y - pt0.y;
-        return (dx1 * dx2 + dy1 * dy2) / Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2) + 1e-10);
+    // The number of times a picture of the given size can be halved before its longest side is at most COARSE_MAX_DIMENSION.
+    private static int getPyramidLevels(int width, int height) {
+        int levels = 0;
+        while ((Math.max(width, height) >> levels) > COARSE_MAX_DIMENSION && levels < MAX_PYRAMID_LEVELS) {
+            levels++;
+        }
+        return levels;
+    }
+
+    // Like BitmapPool.acquireScaled, but filtered, since pyramid levels are usually scaled down by more than half.
+    private static Bitmap acquireFilteredScaled(Bitmap source, int width, int height) {
+        Bitmap bitmap = BitmapPool.getInstance().acquire(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(bitmap).drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return bitmap;
+    }
+
+    private void recordStage(String stage, Metrics.Histogram histogram, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        stageNanos.put(stage, nanos);
+        histogram.record(nanos);
+    }
+
+    // Waits for every search that is running to finish, ignoring how each one ended.
+    private static void waitForSearches(List<Future<int[]>> searches) {
+        boolean interrupted = false;
+        for (Future<int[]> search : searches) {
+            while (!search.isDone()) {
+                try {
+                    search.get();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The shared pool that square searches run on.  Sized to the color planes, or to the processors if there are fewer.
+    private static synchronized ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            int threads = Math.max(1, Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors()));
+            workerPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int threadNumber = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "EdgeDetector-" + threadNumber++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workerPool;
+    }
+
+    private static Metrics.Histogram getStageHistogram(String stage) {
+        return Metrics.getInstance().getHistogram(Metrics.EDGE_DETECTOR_PREFIX + stage, "EdgeDetector");
+    }
+
+    // Histograms hold latencies, so sizes are counted instead.
+    private static Metrics.Counter getCounter(String name) {
+        return Metrics.getInstance().getCounter(Metrics.EDGE_DETECTOR_PREFIX + name, "EdgeDetector");
     }
 
 }
@@ -80,6 +80,10 @@ public class MeasuringLine implements Annotation {
         model.setSelected(selected);
     }
 
+    public boolean isSelected() {
+        return model.isSelected();
+    }
+
     public void applyAction(int dx, int dy, Point position) {
         // Apply the move to the selected endpoint.
         for (Point point : selectedPoints) {
@@ -91,6 +95,10 @@ public class MeasuringLine implements Annotation {
         model.drawOnCanvas(canvas, subview, contourRectangle);
     }
 
+    public Rect getBounds(int bgWidth, int bgHeight, float resizeRatio) {
+        return model.getBounds(subview, contourRectangle, resizeRatio);
+    }
+
     private boolean isPointInTextBox(Point position) {
         Rect boundary = model.getTextBounds(contourRectangle);
         int centerTolerance = (int) (centerGrabTolerancePx / subview.getMagnification());
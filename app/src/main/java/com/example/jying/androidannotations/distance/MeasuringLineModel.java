@@ -42,7 +42,7 @@ public class MeasuringLineModel implements Parcelable {
     private Rect textBoundary; // This rect is the boundary on the last drawn canvas that the text portion of the annotation resides in.
 
     public MeasuringLineModel(Point start) {
-        this.start = start;
+        this.start = new Point(start); // Touch points are reused by the gesture handler, so keep a copy.
         setEnd(start);
         setSelected(false);
 
@@ -104,6 +104,20 @@ public class MeasuringLineModel implements Parcelable {
         canvas.drawBitmap(textBitmap, src, textBoundary, null);
     }
 
+    // Gets the area covered by drawOnCanvas in original image pixels, including the selection handles.
+    public Rect getBounds(Subview subview, ContourRectangle contourRectangle, float resizeRatio) {
+        Rect bounds = new Rect(Math.min(start.x, end.x), Math.min(start.y, end.y), Math.max(start.x, end.x), Math.max(start.y, end.y));
+        int outset = lineWidthPx / 2 + 1;
+        if (selected) {
+            // Handles are drawn at a constant size on the canvas, so convert their radius back to original pixels.
+            float handleRadius = AnnotationView.convertDpToPx(MeasuringLine.ENDPOINT_GRAB_TOLERANCE_DP) * SELECT_RADIUS_ADJUST / subview.getMagnification();
+            outset = Math.max(outset, (int) Math.ceil(handleRadius / resizeRatio) + 1);
+        }
+        bounds.inset(-outset, -outset);
+        bounds.union(getTextBounds(contourRectangle));
+        return bounds;
+    }
+
     public ArrayList<Point> getPoints() {
         ArrayList<Point> points = new ArrayList<Point>();
         points.add(start);
@@ -114,6 +128,10 @@ public class MeasuringLineModel implements Parcelable {
     public void setSelected(boolean selected) {
         this.selected = selected;
     }
+
+    public boolean isSelected() {
+        return selected;
+    }
     public void setEnd(Point end) {
         this.end = new Point(end);
     }
@@ -4,6 +4,7 @@ import android.graphics.Point;
 import android.os.Bundle;
 import android.os.Parcelable;
 
+import com.example.jying.androidannotations.AnnotationView;
 import com.example.jying.androidannotations.support.Annotation;
 import com.example.jying.androidannotations.support.Overlay;
 
@@ -16,7 +17,7 @@ import java.util.List;
  */
 public class MeasuringOverlay extends Overlay {
 
-    public static final float IMAGE_PROCESSING_SCALE = .5f;
+    public static final float IMAGE_PROCESSING_SCALE = .5f; // The scale contour corners are found at.  Large pictures are searched below it, on a pyramid level.
 
     // Mode constants
     public static final int MODE_SELECT_REFERENCE = 0;
@@ -33,6 +34,7 @@ public class MeasuringOverlay extends Overlay {
     private ArrayList<ContourRectangle> contourRectangles;
     private ArrayList<MeasuringLine> measuredLines;
     private MeasuringOverlayDelegate delegate;
+    private DetectionPreset detectionPreset = DetectionPreset.BALANCED; // Which stages contour detection runs.
 
     public MeasuringOverlay() {
         super();
@@ -41,6 +43,7 @@ public class MeasuringOverlay extends Overlay {
         MINIMUM_DRAW_DP = 0;
 
         requiresViewInflation = true; // Because of the selection handles, this overlay requires view inflation to size the handles.
+        recordsDisplayList = false; // The selection handles are also sized by magnification, so a recording would go stale on zoom.
 
         delegate = new MeasuringOverlayDelegate() {
             @Override
@@ -78,6 +81,14 @@ public class MeasuringOverlay extends Overlay {
         return mode;
     }
 
+    public DetectionPreset getDetectionPreset() {
+        return detectionPreset;
+    }
+
+    public void setDetectionPreset(DetectionPreset detectionPreset) {
+        this.detectionPreset = detectionPreset;
+    }
+
     public void setMode(int mode) {
         this.mode = mode;
         delegate.onMeasuringModeChanged(mode);
@@ -104,7 +115,7 @@ public class MeasuringOverlay extends Overlay {
         }
 
         if (backingCanvas != null) {
-            backingCanvas.redrawAll();
+            backingCanvas.redrawAll(this);
         }
     }
 
@@ -114,7 +125,7 @@ public class MeasuringOverlay extends Overlay {
 
     public void clearAnnotations() {
         measuredLines.clear();
-        backingCanvas.redrawAll();
+        backingCanvas.redrawAll(this);
     }
 
     public void setLongEdgeDimension(double dimension) {
@@ -133,7 +144,7 @@ public class MeasuringOverlay extends Overlay {
         // Copy the new arraylist into this one.  We don't want to change up the reference and add additional layers.
         this.contourRectangles = contourRectangles;
         annotationSets.add((List) this.contourRectangles); // not that "this" is necessary, but...
-        backingCanvas.redrawAll();
+        backingCanvas.redrawAll(this);
     }
 
     public ArrayList<ContourRectangle> getContourRectangles() {
@@ -142,9 +153,11 @@ public class MeasuringOverlay extends Overlay {
 
     public void onDeleteButtonPressed() {
         if (currentLine != null) {
+            invalidateAnnotation(currentLine);
             measuredLines.remove(currentLine);
+            unindexAnnotation(currentLine);
             currentLine = null;
-            backingCanvas.redrawAll();
+            redrawDamaged();
             delegate.onMeasuringLineSelected(false);
         }
     }
@@ -222,33 +235,41 @@ public class MeasuringOverlay extends Overlay {
 
                     currentLine.setActionPointToEndpoint();
                     measuredLines.add(currentLine);
+                    invalidateAnnotation(currentLine);
                 }
                 break;
             case MODE_SELECT_REFERENCE:
-                // Search from small to large, selecting the smallest and deselecting all others.
+                // Search from small to large, selecting the smallest and deselecting all others.  Only rectangles whose bounds hold the point are tested.
+                List<Annotation> candidates = getAnnotationsNear(position, 0);
                 boolean found = false;
                 for (int index = contourRectangles.size() - 1; index >= 0; index--) {
                     ContourRectangle rect = contourRectangles.get(index);
-                    if (rect.contains(position)) {
-                        rect.setSelected(!found);
+                    boolean wasSelected = rect.isSelected();
+                    if (!found && candidates.contains(rect) && rect.contains(position)) {
+                        rect.setSelected(true);
                         found = true;
                     }
                     else {
                         rect.setSelected(false);
                     }
+                    if (rect.isSelected() != wasSelected) {
+                        invalidateAnnotation(rect);
+                    }
                 }
                 delegate.onContourSelectionChanged(found);
-                backingCanvas.redrawAll();
+                redrawDamaged();
                 break;
         }
     }
 
     // Called when the user is performing a one-finger drawing gesture (moving one finger on the screen)
     @Override
-    protected void gestureDraw(Point position, int dx, int dy, boolean possiblyAccidental) {
+    protected void gestureDraw(Point position, int dx, int dy, long eventTime, boolean possiblyAccidental) {
         if (mode == MODE_MEASURE) {
+            invalidateAnnotation(currentLine);
             currentLine.applyAction(dx, dy, position);
-            backingCanvas.redrawAll();
+            invalidateAnnotation(currentLine);
+            redrawDamaged();
         }
     }
 
@@ -271,7 +292,7 @@ public class MeasuringOverlay extends Overlay {
                 else if (currentLine != null) {
                     delegate.onMeasuringLineSelected(true);
                 }
-                backingCanvas.redrawAll();
+                redrawDamaged();
             }
         }
     }
@@ -282,8 +303,11 @@ public class MeasuringOverlay extends Overlay {
 
     @Override
     protected void gestureZoom(float dA) {
+        // Selection handles are sized by magnification, so only the selected line needs to be redrawn.
+        invalidateAnnotation(currentLine);
         super.gestureZoom(dA);
-        backingCanvas.redrawAll();
+        invalidateAnnotation(currentLine);
+        redrawDamaged();
     }
 
     private ContourRectangle getSelectedContourRectangle() {
@@ -303,9 +327,11 @@ public class MeasuringOverlay extends Overlay {
     }
 
     private MeasuringLine getMeasuringLineAtPosition(Point position) {
-        for (MeasuringLine line : measuredLines) {
-            if (line.contains(position)) {
-                return line;
+        // Lines can be grabbed from slightly outside of what's drawn, so search within the grab tolerance.
+        int tolerance = (int) (AnnotationView.convertDpToPx(Math.max(MeasuringLine.ENDPOINT_GRAB_TOLERANCE_DP, MeasuringLine.CENTER_GRAB_TOLERANCE_DP)) / subview.getMagnification()) + 1;
+        for (Annotation annotation : getAnnotationsNear(position, tolerance)) {
+            if ((annotation instanceof MeasuringLine) && ((MeasuringLine) annotation).contains(position)) {
+                return (MeasuringLine) annotation;
             }
         }
         return null;
@@ -314,20 +340,27 @@ public class MeasuringOverlay extends Overlay {
     private void setLineSelection(MeasuringLine selectLine, boolean select) {
         currentLine = selectLine;
         if (currentLine != null) {
+            invalidateAnnotation(currentLine); // Handles are drawn around selected lines, so the covered area changes with selection.
             currentLine.setSelected(select);
+            invalidateAnnotation(currentLine);
         }
         delegate.onMeasuringLineSelected(select);
 
         // Deselect all other lines.
         for (MeasuringLine line : measuredLines) {
             if (line != selectLine) {
+                if (line.isSelected()) {
+                    invalidateAnnotation(line);
+                }
                 line.setSelected(false);
             }
         }
     }
 
     private void deleteCurrentLine() {
+        invalidateAnnotation(currentLine);
         measuredLines.remove(currentLine);
+        unindexAnnotation(currentLine);
         currentLine = null;
         delegate.onMeasuringLineSelected(false);
     }
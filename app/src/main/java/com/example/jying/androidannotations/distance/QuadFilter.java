@@ -0,0 +1,263 @@
+package com.example.jying.androidannotations.distance;
+
+import org.opencv.utils.PackedContours;
+
+/**
+ * Finds the contours that approximate to large, convex, nearly square quadrilaterals, entirely in Java.  Approximation follows OpenCV's
+ * approxPolyDP for closed curves, and convexity follows isContourConvex, so the same quads come out as the native calls found, without
+ * crossing into native code several times per contour.  Quads are returned packed as x, y pairs, four corners to a quad.
+ */
+class QuadFilter {
+
+    private static final int INITIAL_SPLIT_ITERATIONS = 3; // Passes spent looking for two far apart points to split a closed contour at.
+
+    private final double minArea;
+    private int[] approx = new int[16]; // The approximated polygon of one contour, as x, y pairs.
+    private int[] stack = new int[32]; // Pairs of start and end indices of the slices still to be approximated.
+    private int[] quads = new int[64];
+    private int quadCount;
+
+    QuadFilter(double minArea) {
+        this.minArea = minArea;
+    }
+
+    // The packed corners of every quad in the contours, in the order the contours were found.
+    int[] filter(PackedContours contours) {
+        quadCount = 0;
+        int[] points = contours.getPoints();
+        for (int contour = 0; contour < contours.size(); contour++) {
+            int start = contours.getStart(contour);
+            int length = contours.getLength(contour);
+            double epsilon = getArcLength(points, start, length) * DetectionPreset.APPROXIMATION_EPSILON;
+            int corners = approximate(points, start, length, epsilon);
+            if (corners == 4 && Math.abs(getArea(approx, 0, 4)) > minArea && isConvex(approx, 4)) {
+                double maxCosine = 0;
+                for (int j = 2; j < 5; j++) {
+                    double cosine = Math.abs(getCosine(approx, j % 4, j - 2, j - 1));
+                    maxCosine = Math.max(maxCosine, cosine);
+                }
+
+                if (maxCosine < DetectionPreset.MAX_CORNER_COSINE) {
+                    addQuad();
+                }
+            }
+        }
+        int[] result = new int[quadCount * 8];
+        System.arraycopy(quads, 0, result, 0, result.length);
+        return result;
+    }
+
+    // The perimeter of a closed contour.
+    static double getArcLength(int[] points, int start, int length) {
+        double perimeter = 0;
+        int last = start + length - 1;
+        for (int point = start; point <= last; point++) {
+            int previous = (point == start) ? last : point - 1;
+            double dx = points[point * 2] - points[previous * 2];
+            double dy = points[point * 2 + 1] - points[previous * 2 + 1];
+            perimeter += Math.sqrt(dx * dx + dy * dy);
+        }
+        return perimeter;
+    }
+
+    // The signed area of a closed polygon, by the shoelace formula.
+    static double getArea(int[] points, int start, int length) {
+        long twiceArea = 0;
+        int last = start + length - 1;
+        for (int point = start; point <= last; point++) {
+            int previous = (point == start) ? last : point - 1;
+            twiceArea += (long) points[previous * 2] * points[point * 2 + 1] - (long) points[point * 2] * points[previous * 2 + 1];
+        }
+        return twiceArea / 2d;
+    }
+
+    // Approximates a closed contour by Douglas-Peucker into approx, and returns the number of corners.  A port of OpenCV's approxPolyDP_.
+    private int approximate(int[] points, int start, int length, double epsilon) {
+        if (length == 0) {
+            return 0;
+        }
+        ensureApproxCapacity(length);
+        double epsilonSquared = epsilon * epsilon;
+        int corners = 0;
+        int top = 0;
+
+        // Find two points that are roughly the farthest apart, to split the contour into two slices.
+        int splitStart = 0, splitOffset = 0;
+        boolean withinEpsilon = false;
+        for (int iteration = 0; iteration < INITIAL_SPLIT_ITERATIONS; iteration++) {
+            splitStart = (splitStart + splitOffset) % length;
+            int startX = points[(start + splitStart) * 2], startY = points[(start + splitStart) * 2 + 1];
+            double maxDistance = 0;
+            splitOffset = 0;
+            for (int j = 1; j < length; j++) {
+                int point = start + (splitStart + j) % length;
+                double dx = points[point * 2] - startX;
+                double dy = points[point * 2 + 1] - startY;
+                double distance = dx * dx + dy * dy;
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    splitOffset = j;
+                }
+            }
+            withinEpsilon = maxDistance <= epsilonSquared;
+        }
+        if (withinEpsilon) {
+            corners = writeCorner(points, start + splitStart, corners);
+        }
+        else {
+            int splitEnd = (splitStart + splitOffset) % length;
+            top = push(top, splitEnd, splitStart);
+            top = push(top, splitStart, splitEnd);
+        }
+
+        // Split each slice at its farthest point from the chord, until every point is within epsilon of one.
+        while (top > 0) {
+            top -= 2;
+            int sliceStart = stack[top], sliceEnd = stack[top + 1];
+            int startX = points[(start + sliceStart) * 2], startY = points[(start + sliceStart) * 2 + 1];
+            int position = (sliceStart + 1) % length;
+            int farthest = sliceStart;
+            if (position != sliceEnd) {
+                double dx = points[(start + sliceEnd) * 2] - startX;
+                double dy = points[(start + sliceEnd) * 2 + 1] - startY;
+                double maxDistance = 0;
+                while (position != sliceEnd) {
+                    int point = start + position;
+                    double distance = Math.abs((points[point * 2 + 1] - startY) * dx - (points[point * 2] - startX) * dy);
+                    if (distance > maxDistance) {
+                        maxDistance = distance;
+                        farthest = position;
+                    }
+                    position = (position + 1) % length;
+                }
+                withinEpsilon = maxDistance * maxDistance <= epsilonSquared * (dx * dx + dy * dy);
+            }
+            else {
+                withinEpsilon = true;
+            }
+
+            if (withinEpsilon) {
+                corners = writeCorner(points, start + sliceStart, corners);
+            }
+            else {
+                top = push(top, farthest, sliceEnd);
+                top = push(top, sliceStart, farthest);
+            }
+        }
+
+        return removeStraightCorners(corners, epsilonSquared);
+    }
+
+    // Drops corners that lie on an almost straight line between their neighbours, as approxPolyDP does in its last stage.
+    private int removeStraightCorners(int count, double epsilonSquared) {
+        int newCount = count;
+        int writePosition = 0;
+        int startX = approx[(count - 1) * 2], startY = approx[(count - 1) * 2 + 1];
+        int pointX = approx[0], pointY = approx[1];
+        int position = 1 % count;
+
+        for (int i = 0; i < count && newCount > 2; i++) {
+            int endX = approx[position * 2], endY = approx[position * 2 + 1];
+            position = (position + 1) % count;
+
+            double dx = endX - startX;
+            double dy = endY - startY;
+            double distance = Math.abs((pointX - startX) * dy - (pointY - startY) * dx);
+            double successiveInnerProduct = (double) (pointX - startX) * (endX - pointX) + (double) (pointY - startY) * (endY - pointY);
+
+            if (distance * distance <= 0.5 * epsilonSquared * (dx * dx + dy * dy) && dx != 0 && dy != 0 && successiveInnerProduct >= 0) {
+                newCount--;
+                startX = endX;
+                startY = endY;
+                approx[writePosition * 2] = startX;
+                approx[writePosition * 2 + 1] = startY;
+                writePosition = (writePosition + 1) % count;
+                pointX = approx[position * 2];
+                pointY = approx[position * 2 + 1];
+                position = (position + 1) % count;
+                i++;
+                continue;
+            }
+            startX = pointX;
+            startY = pointY;
+            approx[writePosition * 2] = startX;
+            approx[writePosition * 2 + 1] = startY;
+            writePosition = (writePosition + 1) % count;
+            pointX = endX;
+            pointY = endY;
+        }
+        return newCount;
+    }
+
+    // Whether a polygon turns the same way at every corner, with no straight or reflex corners.  A port of OpenCV's isContourConvex.
+    static boolean isConvex(int[] points, int count) {
+        int previousX = points[((count - 2 + count) % count) * 2], previousY = points[((count - 2 + count) % count) * 2 + 1];
+        int currentX = points[(count - 1) * 2], currentY = points[(count - 1) * 2 + 1];
+        long dx0 = currentX - previousX;
+        long dy0 = currentY - previousY;
+        int orientation = 0;
+
+        for (int i = 0; i < count; i++) {
+            previousX = currentX;
+            previousY = currentY;
+            currentX = points[i * 2];
+            currentY = points[i * 2 + 1];
+
+            long dx = currentX - previousX;
+            long dy = currentY - previousY;
+            long dxdy0 = dx * dy0;
+            long dydx0 = dy * dx0;
+
+            orientation |= (dydx0 > dxdy0) ? 1 : ((dydx0 < dxdy0) ? 2 : 3);
+            if (orientation == 3) {
+                return false;
+            }
+
+            dx0 = dx;
+            dy0 = dy;
+        }
+        return true;
+    }
+
+    // The cosine of the angle at corner pt0 between the edges to pt1 and pt2.
+    private static double getCosine(int[] points, int pt1, int pt2, int pt0) {
+        double dx1 = points[pt1 * 2] - points[pt0 * 2];
+        double dy1 = points[pt1 * 2 + 1] - points[pt0 * 2 + 1];
+        double dx2 = points[pt2 * 2] - points[pt0 * 2];
+        double dy2 = points[pt2 * 2 + 1] - points[pt0 * 2 + 1];
+        return (dx1 * dx2 + dy1 * dy2) / Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2) + 1e-10);
+    }
+
+    private int writeCorner(int[] points, int point, int corners) {
+        approx[corners * 2] = points[point * 2];
+        approx[corners * 2 + 1] = points[point * 2 + 1];
+        return corners + 1;
+    }
+
+    private int push(int top, int sliceStart, int sliceEnd) {
+        if (top + 2 > stack.length) {
+            int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, top);
+            stack = grown;
+        }
+        stack[top] = sliceStart;
+        stack[top + 1] = sliceEnd;
+        return top + 2;
+    }
+
+    private void addQuad() {
+        if ((quadCount + 1) * 8 > quads.length) {
+            int[] grown = new int[quads.length * 2];
+            System.arraycopy(quads, 0, grown, 0, quadCount * 8);
+            quads = grown;
+        }
+        System.arraycopy(approx, 0, quads, quadCount * 8, 8);
+        quadCount++;
+    }
+
+    private void ensureApproxCapacity(int length) {
+        if (length * 2 > approx.length) {
+            approx = new int[Math.max(length * 2, approx.length * 2)];
+        }
+    }
+}
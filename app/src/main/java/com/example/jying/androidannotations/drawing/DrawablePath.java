@@ -6,28 +6,34 @@ import android.graphics.Path;
 import android.graphics.PathMeasure;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.os.Parcel;
 import android.os.Parcelable;
 
-import com.example.jying.androidannotations.support.Annotation;
+import com.example.jying.androidannotations.support.IncrementalAnnotation;
+import com.example.jying.androidannotations.support.PointBuffer;
+import com.example.jying.androidannotations.support.RecordableAnnotation;
 import com.example.jying.androidannotations.support.RelativePoint;
 
-import java.util.ArrayList;
-
 /**
  * Created by jying on 6/24/2015.
  */
-public class DrawablePath extends Path implements Annotation, Parcelable {
+public class DrawablePath extends Path implements IncrementalAnnotation, RecordableAnnotation, Parcelable {
 
     // Multipliers that control how thick the path should be drawn on canvas
     private static final int DRAW_SIZE_MODIFIER = 1;
     private static final int ERASE_SIZE_MODIFIER = 4;
 
     private int savedDimX, savedDimY;
-    private ArrayList<RelativePoint> pathPoints;
+    private int rasterizedPointCount; // The number of points that have been stroked onto a canvas of the saved dimensions.
+    private Path incrementPath; // Reused to stroke just the newest segments of the path.
+    private Path wetPath; // The path in original image pixels while it's drawn straight onto the view, or null.
+    private int wetPointCount; // The number of points that have been added to wetPath.
+    private PointBuffer pathPoints; // Relative positions of every point, packed so long strokes stay small.
     private Paint drawPaint;
     private float strokeSize;
     private boolean transparent;
+    private double minRelativeX, minRelativeY, maxRelativeX, maxRelativeY; // The relative extents of every point in the path, kept up to date so bounds don't require a scan.
 
     public DrawablePath(int color, float strokeSize, boolean transparent) {
         super();
@@ -50,8 +56,14 @@ public class DrawablePath extends Path implements Annotation, Parcelable {
         this.savedDimX = 0;
         this.savedDimY = 0;
 
-        this.pathPoints = new ArrayList<RelativePoint>();
+        this.pathPoints = new PointBuffer();
         this.transparent = transparent;
+        this.incrementPath = new Path();
+
+        this.minRelativeX = Double.MAX_VALUE;
+        this.minRelativeY = Double.MAX_VALUE;
+        this.maxRelativeX = -Double.MAX_VALUE;
+        this.maxRelativeY = -Double.MAX_VALUE;
     }
 
     public void drawOnCanvas(Canvas canvas, float resizeRatio) {
@@ -59,53 +71,311 @@ public class DrawablePath extends Path implements Annotation, Parcelable {
             savedDimX = canvas.getWidth();
             savedDimY = canvas.getHeight();
 
-            // Clear the existing path.
-            this.rewind();
-
             // Recreate the path, because our dimensions have changed.
-            for (int index = 0; index < pathPoints.size(); index++) {
-                RelativePoint pointA = pathPoints.get(index);
-                if (index == 0) {
-                    super.moveTo(pointA.getX(savedDimX), pointA.getY(savedDimY));
-                }
-                else if (index == (pathPoints.size() - 1)) {
-                    super.lineTo(pointA.getX(savedDimX), pointA.getY(savedDimY));
-                }
-                else {
-                    RelativePoint pointB = pathPoints.get(index + 1);
-                    super.quadTo(pointA.getX(savedDimX), pointA.getY(savedDimY), pointB.getX(savedDimX), pointB.getY(savedDimY));
-                    index++;
-                }
+            buildPath(this, savedDimX, savedDimY);
+        }
+
+        // Fix stroke width for new resolution
+        drawPaint.setStrokeWidth(getStrokeWidthPx() * resizeRatio);
+        canvas.drawPath(this, drawPaint);
+        rasterizedPointCount = pathPoints.size();
+    }
+
+    // Builds the path at the original image size in a separate path, so the native path stays built for the resolution it's normally drawn at.
+    public void recordOnCanvas(Canvas canvas, int bgWidth, int bgHeight) {
+        if (pathPoints.isEmpty()) {
+            return;
+        }
+        Path recordingPath = new Path(); // Display lists are only recorded after annotations change, so this isn't worth keeping.
+        buildPath(recordingPath, bgWidth, bgHeight);
+        drawPaint.setStrokeWidth(getStrokeWidthPx());
+        canvas.drawPath(recordingPath, drawPaint);
+    }
+
+    // Rebuilds a path from every point, at the given dimensions.
+    private void buildPath(Path path, int dimX, int dimY) {
+        path.rewind();
+        for (int index = 0; index < pathPoints.size(); index++) {
+            if (index == 0) {
+                path.moveTo(pathPoints.getX(index, dimX), pathPoints.getY(index, dimY));
+            }
+            else if (index == (pathPoints.size() - 1)) {
+                path.lineTo(pathPoints.getX(index, dimX), pathPoints.getY(index, dimY));
+            }
+            else {
+                path.quadTo(pathPoints.getX(index, dimX), pathPoints.getY(index, dimY), pathPoints.getX(index + 1, dimX), pathPoints.getY(index + 1, dimY));
+                index++;
             }
+        }
+
+        // Make sure the path is long enough to get drawn the given resolution:
+        if (new PathMeasure(path, false).getLength() < 1) {
+            // If it's too small, draw a line that is visible.
+            int lastIndex = pathPoints.size() - 1;
+            path.lineTo(pathPoints.getX(lastIndex, dimX) + 1, pathPoints.getY(lastIndex, dimY) + 1);
+        }
+    }
+
+    // Strokes only the segments added since the last draw.  The new segments start at the last stroked point, so round caps overlap the previous stroke exactly where a round join would be.
+    public void drawIncrementOnCanvas(Canvas canvas, float resizeRatio) {
+        if ((savedDimX != canvas.getWidth()) || (savedDimY != canvas.getHeight()) || (rasterizedPointCount == 0)) {
+            drawOnCanvas(canvas, resizeRatio); // The native path has to be rebuilt at this resolution anyway.
+            return;
+        }
+        if (rasterizedPointCount >= pathPoints.size()) {
+            return; // Nothing new to draw.
+        }
+
+        incrementPath.rewind();
+        int startIndex = rasterizedPointCount - 1;
+        incrementPath.moveTo(pathPoints.getX(startIndex, savedDimX), pathPoints.getY(startIndex, savedDimY));
 
-            // Make sure the path is long enough to get drawn the given resolution:
-            if (new PathMeasure(this, false).getLength() < 1) {
-                // If it's too small, draw a line that is visible.
-                RelativePoint lastPoint = pathPoints.get(pathPoints.size() - 1);
-                super.lineTo(lastPoint.getX(savedDimX) + 1, lastPoint.getY(savedDimY) + 1);
+        // Segments are added in the same order as the full path is rebuilt in drawOnCanvas.
+        for (int index = startIndex + 1; index < pathPoints.size(); index++) {
+            if (index == (pathPoints.size() - 1)) {
+                incrementPath.lineTo(pathPoints.getX(index, savedDimX), pathPoints.getY(index, savedDimY));
+            }
+            else {
+                incrementPath.quadTo(pathPoints.getX(index, savedDimX), pathPoints.getY(index, savedDimY), pathPoints.getX(index + 1, savedDimX), pathPoints.getY(index + 1, savedDimY));
+                index++;
             }
         }
 
-        // Fix stroke width for new resolution
-        float strokeWidthPx = transparent ? (strokeSize * ERASE_SIZE_MODIFIER) : (strokeSize * DRAW_SIZE_MODIFIER);
-        drawPaint.setStrokeWidth(strokeWidthPx * resizeRatio);
-        canvas.drawPath(this, drawPaint);
+        drawPaint.setStrokeWidth(getStrokeWidthPx() * resizeRatio);
+        canvas.drawPath(incrementPath, drawPaint);
+        rasterizedPointCount = pathPoints.size();
+    }
+
+    // Draws the path onto a canvas whose coordinates are original image pixels, such as the view's canvas transformed to the subview, so it's stroked at screen resolution.
+    // A separate path is extended with just the points added since the last call.  Call releaseWetPath once the path has been drawn onto its backing canvas.
+    public void drawWetOnCanvas(Canvas canvas, int bgWidth, int bgHeight) {
+        if (pathPoints.isEmpty()) {
+            return;
+        }
+        if (wetPath == null) {
+            wetPath = new Path();
+            wetPointCount = 0;
+        }
+
+        // Points are consumed the same way drawOnCanvas rebuilds the path: a moveTo, pairs of quadTo points, then a closing lineTo.
+        int index = wetPointCount;
+        if (index == 0) {
+            wetPath.moveTo(pathPoints.getRelativeX(0) * bgWidth, pathPoints.getRelativeY(0) * bgHeight);
+            index = 1;
+        }
+        for (; index + 1 < pathPoints.size(); index += 2) {
+            wetPath.quadTo(pathPoints.getRelativeX(index) * bgWidth, pathPoints.getRelativeY(index) * bgHeight,
+                    pathPoints.getRelativeX(index + 1) * bgWidth, pathPoints.getRelativeY(index + 1) * bgHeight);
+        }
+        if (index == pathPoints.size() - 1) {
+            wetPath.lineTo(pathPoints.getRelativeX(index) * bgWidth, pathPoints.getRelativeY(index) * bgHeight);
+            index++;
+        }
+        wetPointCount = index;
+
+        drawPaint.setStrokeWidth(getStrokeWidthPx());
+        if (wetPointCount == 1) {
+            canvas.drawPoint(pathPoints.getRelativeX(0) * bgWidth, pathPoints.getRelativeY(0) * bgHeight, drawPaint); // A lone moveTo doesn't draw, but the round cap makes this a dot.
+        }
+        else {
+            canvas.drawPath(wetPath, drawPaint);
+        }
+    }
+
+    // Frees the path used by drawWetOnCanvas.
+    public void releaseWetPath() {
+        wetPath = null;
+        wetPointCount = 0;
+    }
+
+    public Rect getIncrementBounds(int bgWidth, int bgHeight, float resizeRatio) {
+        if ((rasterizedPointCount == 0) || (savedDimX != (int) (bgWidth * resizeRatio)) || (savedDimY != (int) (bgHeight * resizeRatio))) {
+            return getBounds(bgWidth, bgHeight, resizeRatio); // The whole path will be drawn.
+        }
+        return getRecentBounds(bgWidth, bgHeight, Math.max(0, pathPoints.size() - rasterizedPointCount));
     }
 
+    public Rect getBounds(int bgWidth, int bgHeight, float resizeRatio) {
+        if (pathPoints.isEmpty()) {
+            return new Rect();
+        }
+        // Control points of the quadratic curves bound the curves themselves, so the point extents bound the whole path.
+        Rect bounds = new Rect((int) (minRelativeX * bgWidth), (int) (minRelativeY * bgHeight), (int) (maxRelativeX * bgWidth), (int) (maxRelativeY * bgHeight));
+        bounds.right++; // drawOnCanvas may extend very short paths by a pixel to keep them visible.
+        bounds.bottom++;
+        outsetByStroke(bounds);
+        return bounds;
+    }
+
+    // Returns the bounds of the last numPoints points added to the path, along with the point they continue from.
+    public Rect getRecentBounds(int bgWidth, int bgHeight, int numPoints) {
+        if (pathPoints.isEmpty()) {
+            return new Rect();
+        }
+        int firstIndex = Math.max(0, pathPoints.size() - numPoints - 1);
+        int firstX = pathPoints.getX(firstIndex, bgWidth);
+        int firstY = pathPoints.getY(firstIndex, bgHeight);
+        Rect bounds = new Rect(firstX, firstY, firstX + 1, firstY + 1);
+        for (int index = firstIndex + 1; index < pathPoints.size(); index++) {
+            bounds.union(pathPoints.getX(index, bgWidth), pathPoints.getY(index, bgHeight));
+        }
+        bounds.right++;
+        bounds.bottom++;
+        outsetByStroke(bounds);
+        return bounds;
+    }
+
+    // The native path is extended from the stored points rather than the given ones, so it matches a rebuild in drawOnCanvas exactly.
     public void moveTo(RelativePoint point) {
-        pathPoints.add(point);
-        super.moveTo(point.getX(savedDimX), point.getY(savedDimY));
+        int index = addPoint(point);
+        super.moveTo(pathPoints.getX(index, savedDimX), pathPoints.getY(index, savedDimY));
     }
 
     public void quadTo(RelativePoint a, RelativePoint b) {
-        pathPoints.add(a);
-        pathPoints.add(b);
-        super.quadTo(a.getX(savedDimX), a.getY(savedDimY), b.getX(savedDimX), b.getY(savedDimY));
+        int indexA = addPoint(a);
+        int indexB = addPoint(b);
+        super.quadTo(pathPoints.getX(indexA, savedDimX), pathPoints.getY(indexA, savedDimY), pathPoints.getX(indexB, savedDimX), pathPoints.getY(indexB, savedDimY));
     }
 
     public void lineTo(RelativePoint point) {
+        int index = addPoint(point);
+        super.lineTo(pathPoints.getX(index, savedDimX), pathPoints.getY(index, savedDimY));
+    }
+
+    public int getPointCount() {
+        return pathPoints.size();
+    }
+
+    // Removes touch samples that lie within a tolerance (in original image pixels) of the line through their neighbours, using Ramer-Douglas-Peucker.
+    // The remaining samples are refit with the same midpoint quadratic curves that gestures build, so the path keeps its shape.  Returns the new point count.
+    // Only paths built the way DrawingOverlay builds them are simplified: a moveTo, a quadTo per touch sample and a closing lineTo.
+    public int simplify(float tolerancePx, int bgWidth, int bgHeight) {
+        int size = pathPoints.size();
+        if ((size < 6) || (size % 2 != 0) || (tolerancePx <= 0)) {
+            return size;
+        }
+
+        // Recover the touch samples.  Each quadTo's control point is a sample, after the first which repeats the starting point.
+        int sampleCount = (size - 2) / 2 + 1;
+        float[] samples = new float[sampleCount * 2]; // In original image pixels.
+        samples[0] = pathPoints.getRelativeX(0) * bgWidth;
+        samples[1] = pathPoints.getRelativeY(0) * bgHeight;
+        for (int sample = 1; sample < sampleCount - 1; sample++) {
+            int controlIndex = 1 + sample * 2;
+            samples[sample * 2] = pathPoints.getRelativeX(controlIndex) * bgWidth;
+            samples[sample * 2 + 1] = pathPoints.getRelativeY(controlIndex) * bgHeight;
+        }
+        samples[(sampleCount - 1) * 2] = pathPoints.getRelativeX(size - 1) * bgWidth;
+        samples[(sampleCount - 1) * 2 + 1] = pathPoints.getRelativeY(size - 1) * bgHeight;
+
+        boolean[] keep = findSimplifiedSamples(samples, sampleCount, tolerancePx);
+        int keptCount = 0;
+        for (boolean kept : keep) {
+            keptCount += kept ? 1 : 0;
+        }
+        if (keptCount == sampleCount) {
+            return size;
+        }
+
+        // Refit: start at the first sample, curve through the midpoint of each pair of samples using the earlier one as the control point, and end at the last.
+        PointBuffer simplified = new PointBuffer(keptCount * 2);
+        float previousX = samples[0], previousY = samples[1];
+        simplified.add(previousX / bgWidth, previousY / bgHeight);
+        for (int sample = 1; sample < sampleCount; sample++) {
+            if (!keep[sample]) {
+                continue;
+            }
+            float x = samples[sample * 2], y = samples[sample * 2 + 1];
+            simplified.add(previousX / bgWidth, previousY / bgHeight);
+            simplified.add((previousX + x) / 2 / bgWidth, (previousY + y) / 2 / bgHeight);
+            previousX = x;
+            previousY = y;
+        }
+        simplified.add(previousX / bgWidth, previousY / bgHeight);
+
+        pathPoints = simplified;
+        minRelativeX = Double.MAX_VALUE;
+        minRelativeY = Double.MAX_VALUE;
+        maxRelativeX = -Double.MAX_VALUE;
+        maxRelativeY = -Double.MAX_VALUE;
+        for (int index = 0; index < pathPoints.size(); index++) {
+            includeInExtents(pathPoints.getRelativeX(index), pathPoints.getRelativeY(index));
+        }
+
+        // Rebuild the native path on the next draw.
+        this.rewind();
+        savedDimX = 0;
+        savedDimY = 0;
+        rasterizedPointCount = 0;
+        return pathPoints.size();
+    }
+
+    // Ramer-Douglas-Peucker over interleaved x, y samples, using a stack of ranges rather than recursion so long strokes can't overflow.
+    private static boolean[] findSimplifiedSamples(float[] samples, int sampleCount, float tolerance) {
+        boolean[] keep = new boolean[sampleCount];
+        keep[0] = true;
+        keep[sampleCount - 1] = true;
+        int[] ranges = new int[sampleCount * 2];
+        int rangeCount = 0;
+        ranges[rangeCount++] = 0;
+        ranges[rangeCount++] = sampleCount - 1;
+        while (rangeCount > 0) {
+            int last = ranges[--rangeCount];
+            int first = ranges[--rangeCount];
+            float startX = samples[first * 2], startY = samples[first * 2 + 1];
+            float dx = samples[last * 2] - startX, dy = samples[last * 2 + 1] - startY;
+            double length = Math.sqrt(dx * dx + dy * dy);
+
+            int farthest = -1;
+            double farthestDistance = tolerance;
+            for (int sample = first + 1; sample < last; sample++) {
+                float px = samples[sample * 2] - startX, py = samples[sample * 2 + 1] - startY;
+                double distance = (length == 0) ? Math.sqrt(px * px + py * py) : Math.abs(px * dy - py * dx) / length;
+                if (distance > farthestDistance) {
+                    farthest = sample;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest != -1) {
+                keep[farthest] = true;
+                ranges[rangeCount++] = first;
+                ranges[rangeCount++] = farthest;
+                ranges[rangeCount++] = farthest;
+                ranges[rangeCount++] = last;
+            }
+        }
+        return keep;
+    }
+
+    // Drops spare point storage.  Call once the path won't grow any more.
+    public void trimToSize() {
+        pathPoints.trimToSize();
+    }
+
+    // Returns the index of the new point.
+    private int addPoint(RelativePoint point) {
         pathPoints.add(point);
-        super.lineTo(point.getX(savedDimX), point.getY(savedDimY));
+        int index = pathPoints.size() - 1;
+        includeInExtents(pathPoints.getRelativeX(index), pathPoints.getRelativeY(index)); // As stored, so bounds match what's drawn.
+        return index;
+    }
+
+    private void includeInExtents(double relativeX, double relativeY) {
+        minRelativeX = Math.min(minRelativeX, relativeX);
+        minRelativeY = Math.min(minRelativeY, relativeY);
+        maxRelativeX = Math.max(maxRelativeX, relativeX);
+        maxRelativeY = Math.max(maxRelativeY, relativeY);
+    }
+
+    // The stroke width in original image pixels.
+    private float getStrokeWidthPx() {
+        return transparent ? (strokeSize * ERASE_SIZE_MODIFIER) : (strokeSize * DRAW_SIZE_MODIFIER);
+    }
+
+    // Round caps and joins extend half of the stroke width past the path itself.
+    private void outsetByStroke(Rect bounds) {
+        int strokeOutset = (int) Math.ceil(getStrokeWidthPx() / 2) + 1;
+        bounds.inset(-strokeOutset, -strokeOutset);
     }
 
     public int describeContents() {
@@ -119,7 +389,7 @@ public class DrawablePath extends Path implements Annotation, Parcelable {
         out.writeInt(transparent ? 1 : 0);
 
         // Write out path data
-        out.writeList(pathPoints);
+        pathPoints.writeToParcel(out);
     }
 
     public static final Parcelable.Creator<DrawablePath> CREATOR = new Parcelable.Creator<DrawablePath>() {
@@ -130,20 +400,13 @@ public class DrawablePath extends Path implements Annotation, Parcelable {
             boolean transparent = (in.readInt() == 1);
 
             // Read in path data
-            ArrayList<RelativePoint> pointsList = in.readArrayList(RelativePoint.class.getClassLoader());
+            PointBuffer points = PointBuffer.createFromParcel(in);
 
+            // Take the points as they are.  The native path and bounds are rebuilt from them when the path is first drawn.
             DrawablePath recreatedPath = new DrawablePath(color, strokeWidth, transparent);
-            for (int index = 0; index < pointsList.size(); index++) {
-                if (index == 0) {
-                    recreatedPath.moveTo(pointsList.get(index));
-                }
-                else if (index == (pointsList.size() - 1)) {
-                    recreatedPath.lineTo(pointsList.get(index));
-                }
-                else {
-                    recreatedPath.quadTo(pointsList.get(index), pointsList.get(index + 1));
-                    index++;
-                }
+            recreatedPath.pathPoints = points;
+            for (int index = 0; index < points.size(); index++) {
+                recreatedPath.includeInExtents(points.getRelativeX(index), points.getRelativeY(index));
             }
             return recreatedPath;
         }
@@ -14,6 +14,7 @@ import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.example.jying.androidannotations.support.AnnotationLayer;
+import com.example.jying.androidannotations.support.FileManager;
 import com.example.jying.androidannotations.support.LayerDelegate;
 import com.example.jying.androidannotations.R;
 
@@ -35,6 +36,7 @@ public class DrawingLayer extends AnnotationLayer {
 
     public DrawingLayer(Context context, ViewGroup parent, String name, LayerDelegate delegate) {
         super(context, parent, TOOLBAR_RESOURCE_ID, ICON_RESOURCE_ID, name, new DrawingOverlay(), delegate);
+        ((DrawingOverlay) overlay).setCheckpointDirectory(FileManager.createUndoCheckpointDirectory(context));
     }
 
     @Override
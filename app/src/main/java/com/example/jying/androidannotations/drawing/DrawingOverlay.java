@@ -1,12 +1,19 @@
 package com.example.jying.androidannotations.drawing;
 
+import android.graphics.Canvas;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
+import com.example.jying.androidannotations.AnnotationView;
+import com.example.jying.androidannotations.support.Metrics;
 import com.example.jying.androidannotations.support.Overlay;
 import com.example.jying.androidannotations.support.RelativePoint;
+import com.example.jying.androidannotations.support.Subview;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Stack;
@@ -21,22 +28,38 @@ public class DrawingOverlay extends Overlay {
     private static final String BUNDLE_UNDONE_PATHS = "UndonePaths";
     private static final float SIZE_DIFFERENCE_MODIFIER = 1.3f; // Increasing this modifier means that changing sizes will change the stroke width more.
     private static final int BG_WIDTH_DIVISIONS = 300; // Affects the base size of lines.  A larger number means smaller lines.
+    private static final float DEFAULT_SIMPLIFY_TOLERANCE_DP = .5f; // Finished strokes lose touch samples that are closer than this to the line through their neighbours, as seen on screen.
+
+    private static final Metrics.Counter pointsBeforeCounter = Metrics.getInstance().getCounter(Metrics.STROKE_POINTS_BEFORE, "DrawingOverlay");
+    private static final Metrics.Counter pointsAfterCounter = Metrics.getInstance().getCounter(Metrics.STROKE_POINTS_AFTER, "DrawingOverlay");
+    private static final Metrics.Histogram undoHistogram = Metrics.getInstance().getHistogram(Metrics.DRAWING_UNDO, "DrawingOverlay");
+    private static final Metrics.Histogram redoHistogram = Metrics.getInstance().getHistogram(Metrics.DRAWING_REDO, "DrawingOverlay");
+    // From a touch sample being taken to the frame that shows it, split by whether the stroke was wet or drawn onto the backing canvas.
+    private static final Metrics.Histogram wetLatencyHistogram = Metrics.getInstance().getHistogram(Metrics.INK_LATENCY, "wet");
+    private static final Metrics.Histogram quickdrawLatencyHistogram = Metrics.getInstance().getHistogram(Metrics.INK_LATENCY, "quickdraw");
+    private static final long NANOS_PER_MILLI = 1000 * 1000;
 
     private DrawablePath currentPath; // This is the path that's currently being drawn.  This is created when touchDown is called and pushed onto the stack when touchUp is called.
     private Stack<DrawablePath> storedPaths; // A list of paths that the user has drawn
     private Stack<DrawablePath> undonePaths; // A list of paths that the user has undone.  This is used for the redo action.
+    private StrokeCheckpoints checkpoints; // Snapshots of storedPaths' raster, so undo and redo only replay the strokes drawn since the nearest one.
 
     private int currentColor; // The color that the next DrawablePath should be:
     private int currentDrawSize; // The draw size of the next DrawablePath, not scaled.
 
     private boolean erase; // Whether or not we're currently erasing
     private boolean quadAdded; // Whether or not a quadratic bezier curve was added to the current path.  If it's not, we still want to register the dot as a path.
+    private boolean wetInk = true; // Whether strokes in progress are drawn straight onto the view and only drawn onto the backing canvas once they're finished.
+    private boolean drawingWet; // Whether the current path is wet.  Erasing is never wet, since clearing has to happen on the backing canvas.
+    private long undrawnSampleTime; // When the newest touch sample that hasn't been shown yet was taken, in SystemClock.uptimeMillis() time, or 0.
+    private float simplifyToleranceDp = DEFAULT_SIMPLIFY_TOLERANCE_DP;
 
     public DrawingOverlay() {
         super();
         // Initialize the stacks for undo and redo.
         storedPaths = new Stack<DrawablePath>();
         undonePaths = new Stack<DrawablePath>();
+        checkpoints = new StrokeCheckpoints();
 
         annotationSets.add((List) storedPaths);
     }
@@ -49,6 +72,33 @@ public class DrawingOverlay extends Overlay {
         this.currentDrawSize = (int) (Math.pow(size, SIZE_DIFFERENCE_MODIFIER) * subview.getBgWidth() / BG_WIDTH_DIVISIONS);
     }
 
+    // Sets how far (in dp on screen) a finished stroke may move when redundant points are removed.  0 keeps every point.
+    public void setSimplifyTolerance(float toleranceDp) {
+        this.simplifyToleranceDp = toleranceDp;
+    }
+
+    public float getSimplifyTolerance() {
+        return simplifyToleranceDp;
+    }
+
+    // Lets undo checkpoints that don't fit in memory be spilled to a directory instead of being dropped.
+    public void setCheckpointDirectory(File directory) {
+        checkpoints.setSpillDirectory(directory);
+    }
+
+    public StrokeCheckpoints getCheckpoints() {
+        return checkpoints;
+    }
+
+    // Sets whether strokes in progress are drawn straight onto the view at screen resolution, rather than onto the backing canvas as they grow.
+    public void setWetInk(boolean wetInk) {
+        this.wetInk = wetInk;
+    }
+
+    public boolean isWetInk() {
+        return wetInk;
+    }
+
     public void enableEraser() {
         erase = true;
     }
@@ -64,25 +114,50 @@ public class DrawingOverlay extends Overlay {
     // Undoes the last path, putting it onto the stack.
     public void undo() {
         if (!storedPaths.empty()) {
-            undonePaths.push(storedPaths.pop());
-            backingCanvas.redrawAll();
+            long startNanos = System.nanoTime();
+            DrawablePath undoPath = storedPaths.pop();
+            undonePaths.push(undoPath);
+            if (!restoreFromCheckpoint(undoPath)) {
+                invalidateAnnotation(undoPath);
+            }
+            unindexAnnotation(undoPath);
+            redrawDamaged();
+            undoHistogram.recordSince(startNanos);
         }
     }
 
     // Takes an action from undonePaths and redoes it.
     public void redo() {
         if (!undonePaths.empty()) {
+            long startNanos = System.nanoTime();
             DrawablePath redoPath = undonePaths.pop();
             storedPaths.push(redoPath);
-            backingCanvas.redrawAll();
+            if (restoreFromCheckpoint(redoPath)) {
+                indexAnnotation(redoPath);
+            }
+            else {
+                invalidateAnnotation(redoPath);
+            }
+            redrawDamaged();
+            redoHistogram.recordSince(startNanos);
         }
     }
 
+    // Redraws the area covered by a path that was just added or removed from the nearest checkpoint.  Returns false if no checkpoint could be used.
+    private boolean restoreFromCheckpoint(DrawablePath path) {
+        if (backingCanvas == null) {
+            return false;
+        }
+        Rect bounds = path.getBounds(backingCanvas.getOriginalWidth(), backingCanvas.getOriginalHeight(), backingCanvas.getResizeRatio());
+        return checkpoints.restore(backingCanvas, this, storedPaths, bounds);
+    }
+
     @Override
     public void clearAnnotations() {
         // Reset the stacks for undo and redo.
         storedPaths.clear();
         undonePaths.clear();
+        checkpoints.clear();
         super.clearAnnotations();
     }
 
@@ -107,12 +182,14 @@ public class DrawingOverlay extends Overlay {
         for (Parcelable path : undone) {
             undonePaths.push((DrawablePath) path);
         }
+        checkpoints.clear(); // Snapshots were of the strokes that were replaced.
     }
 
     // Called when the user starts a gesture.
     @Override
     protected void gestureStart(Point position) {
         quadAdded = false;  // Reset path added.
+        drawingWet = wetInk && !erase;
 
         currentPath = new DrawablePath(currentColor, currentDrawSize, erase);
         storedPaths.push(currentPath);
@@ -122,7 +199,59 @@ public class DrawingOverlay extends Overlay {
 
     // Called when the user is performing a one-finger drawing gesture (moving one finger on the screen)
     @Override
-    protected void gestureDraw(Point position, int dx, int dy, boolean possiblyAccidental) {
+    protected void gestureDraw(Point position, int dx, int dy, long eventTime, boolean possiblyAccidental) {
+        appendSegment(position, dx, dy);
+        inkAdded(eventTime, 2);
+    }
+
+    // Adds every sample of the batch to the path, then draws them with a single raster update.
+    @Override
+    protected void gestureDrawBatch(Point origin, Point[] positions, long[] eventTimes, int count, boolean possiblyAccidental) {
+        Point previous = origin;
+        for (int index = 0; index < count; index++) {
+            appendSegment(positions[index], positions[index].x - previous.x, positions[index].y - previous.y);
+            previous = positions[index];
+        }
+        inkAdded(eventTimes[count - 1], 2 * count);
+    }
+
+    // Shows points that were just added to the current path.  Wet paths are drawn by the view's next frame, so nothing is rasterized now.
+    private void inkAdded(long sampleTime, int numPoints) {
+        undrawnSampleTime = sampleTime;
+        if (!drawingWet) {
+            rasterizeRecentPoints(numPoints);
+        }
+    }
+
+    // Draws the current path straight onto the view, scaled from original image pixels to the screen.
+    @Override
+    public void drawWetInk(Canvas canvas, Subview subview) {
+        if (undrawnSampleTime != 0) {
+            long latencyNanos = (SystemClock.uptimeMillis() - undrawnSampleTime) * NANOS_PER_MILLI;
+            (drawingWet ? wetLatencyHistogram : quickdrawLatencyHistogram).record(latencyNanos);
+            undrawnSampleTime = 0;
+        }
+        if (!drawingWet || (currentPath == null)) {
+            return;
+        }
+        float magnification = subview.getMagnification();
+        canvas.save();
+        canvas.scale(magnification, magnification);
+        canvas.translate(-subview.getSubviewRectangle().left, -subview.getSubviewRectangle().top);
+        currentPath.drawWetOnCanvas(canvas, subview.getBgWidth(), subview.getBgHeight());
+        canvas.restore();
+    }
+
+    // Stops drawing the current path onto the view.  Call once it's on the backing canvas, or discarded.
+    private void finishWetInk() {
+        if (drawingWet) {
+            currentPath.releaseWetPath();
+            drawingWet = false;
+        }
+    }
+
+    // Adds a curve towards a touch position, using the previous position as the control point.
+    private void appendSegment(Point position, int dx, int dy) {
         double pointAX = (double) (position.x - dx);
         double pointAY = (double) (position.y - dy);
         RelativePoint pointA = new RelativePoint(pointAX / subview.getBgWidth(), pointAY / subview.getBgHeight());
@@ -133,8 +262,15 @@ public class DrawingOverlay extends Overlay {
 
         currentPath.quadTo(pointA, pointB);
         quadAdded = true;
-        if (erase && (backingCanvas.getNumLayers() != 1)) {
-            backingCanvas.redrawAll();
+    }
+
+    // Draws the newest points of the current path onto the backing canvas.
+    private void rasterizeRecentPoints(int numPoints) {
+        if (erase && (backingCanvas.getNumLayers() != 1) && !backingCanvas.isLayerCaching()) {
+            // Without cached layers, erasing clears other layers too, so redraw the area around the new segments to restore them.
+            indexAnnotation(currentPath); // The path has grown, and the redraw looks it up by its bounds.
+            backingCanvas.invalidateRegion(currentPath.getRecentBounds(subview.getBgWidth(), subview.getBgHeight(), numPoints), this);
+            redrawDamaged();
         }
         else {
             backingCanvas.quickdrawAnnotation(currentPath, this);
@@ -161,11 +297,33 @@ public class DrawingOverlay extends Overlay {
                 point = new RelativePoint((double) (position.x + 1) / subview.getBgWidth(), (double) (position.y + 1) / subview.getBgHeight());
             }
             currentPath.lineTo(point);
-            backingCanvas.redrawAll();
+            simplifyCurrentPath();
+            currentPath.trimToSize(); // The path is finished, so drop the room it had to grow.
+            invalidateAnnotation(currentPath); // Re-stroke the finished path in one piece so joins match a full redraw exactly.  A wet path is drawn onto the backing canvas only here.
+            redrawDamaged();
+            finishWetInk();
+            checkpoints.onStrokeAdded(backingCanvas, this, storedPaths);
         }
         else {
             storedPaths.remove(currentPath);
+            unindexAnnotation(currentPath);
+            finishWetInk();
+        }
+    }
+
+    // Removes nearly collinear points from the finished path.  The tolerance is mapped from screen dp to image pixels at the current zoom, so the change can't be seen.
+    private void simplifyCurrentPath() {
+        if (!quadAdded || (simplifyToleranceDp <= 0)) {
+            return;
         }
+        int bgWidth = subview.getBgWidth();
+        int bgHeight = subview.getBgHeight();
+        float tolerancePx = AnnotationView.convertDpToPx(simplifyToleranceDp) / subview.getMagnification();
+        int before = currentPath.getPointCount();
+        backingCanvas.invalidateRegion(currentPath.getBounds(bgWidth, bgHeight, 1), this); // The simplified path may not cover every pixel the original did.
+        int after = currentPath.simplify(tolerancePx, bgWidth, bgHeight);
+        pointsBeforeCounter.add(before);
+        pointsAfterCounter.add(after);
     }
 
     // Called when the user has longpressed a point
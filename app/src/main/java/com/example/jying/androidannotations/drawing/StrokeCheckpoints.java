@@ -0,0 +1,323 @@
+package com.example.jying.androidannotations.drawing;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.example.jying.androidannotations.support.BackingCanvas;
+import com.example.jying.androidannotations.support.BitmapPool;
+import com.example.jying.androidannotations.support.FileManager;
+import com.example.jying.androidannotations.support.Metrics;
+import com.example.jying.androidannotations.support.Overlay;
+import com.example.jying.androidannotations.support.WriteDelegate;
+import com.example.jying.androidannotations.support.WriteTask;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Raster snapshots of a DrawingOverlay's cached layer, taken every few strokes.  Undo and redo restore the changed area from the newest snapshot
+ * and replay only the strokes drawn after it, instead of every stroke that touches the area.
+ * Snapshots past the memory budget are spilled to disk on FileManager's cache write thread and read back when they're needed.  Main thread only.
+ */
+public class StrokeCheckpoints implements WriteDelegate {
+
+    private static final String TAG = "StrokeCheckpoints";
+    private static final int INTERVAL = 25; // Strokes between snapshots.  Undo replays at most this many strokes.
+    private static final long MEMORY_BUDGET_BYTES = 24 * 1024 * 1024; // Snapshots in memory past this are spilled to disk.
+    private static final int MAX_CHECKPOINTS = 12; // Snapshots kept in memory and on disk together.  The oldest are dropped past this.
+    private static final String SPILL_FILE_PREFIX = "checkpoint_";
+    private static final String SPILL_FILE_SUFFIX = ".raw";
+
+    private final ArrayList<Checkpoint> checkpoints; // Ordered by stroke count, oldest first.
+    private final ArrayList<Checkpoint> discardedWhileSpilling; // Their bitmaps are released once the write thread is done with them.
+    private File spillDirectory; // Null if snapshots can't be spilled, in which case they're dropped when over budget.
+    private int nextSpillNumber = 0;
+
+    private final Metrics.Counter restoreCounter = Metrics.getInstance().getCounter(Metrics.CHECKPOINT_RESTORES, TAG);
+    private final Metrics.Counter replayedStrokesCounter = Metrics.getInstance().getCounter(Metrics.CHECKPOINT_REPLAYED_STROKES, TAG);
+    private final Metrics.Counter spillCounter = Metrics.getInstance().getCounter(Metrics.CHECKPOINT_SPILLS, TAG);
+
+    public StrokeCheckpoints() {
+        checkpoints = new ArrayList<Checkpoint>();
+        discardedWhileSpilling = new ArrayList<Checkpoint>();
+    }
+
+    // Sets where snapshots are spilled to.  Without a directory, snapshots that don't fit in memory are dropped.
+    public void setSpillDirectory(File directory) {
+        this.spillDirectory = directory;
+    }
+
+    // The memory held by snapshots that are in memory and not on their way to disk.
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (Checkpoint checkpoint : checkpoints) {
+            if ((checkpoint.bitmap != null) && !checkpoint.spilling) {
+                bytes += checkpoint.bitmap.getByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    // Called once a stroke has been added to strokes and drawn.  Takes a snapshot if enough strokes were drawn since the last one.
+    public void onStrokeAdded(BackingCanvas canvas, Overlay overlay, List<DrawablePath> strokes) {
+        discardStale(strokes, canvas.getResizeRatio());
+        int lastCount = 0;
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.strokeCount <= strokes.size()) {
+                lastCount = Math.max(lastCount, checkpoint.strokeCount);
+            }
+        }
+        if (strokes.size() - lastCount < INTERVAL) {
+            return;
+        }
+
+        Bitmap copy = canvas.copyLayer(overlay);
+        if (copy == null) {
+            return; // The layer isn't up to date yet.  Try again after the next stroke.
+        }
+        checkpoints.add(findInsertIndex(strokes.size()), new Checkpoint(strokes.size(), strokes.get(strokes.size() - 1), canvas.getResizeRatio(), copy));
+        while (checkpoints.size() > MAX_CHECKPOINTS) {
+            discard(checkpoints.remove(0));
+        }
+        enforceBudget();
+    }
+
+    // Redraws a region (in original image pixels) of the overlay's layer from the newest snapshot of strokes, replaying the strokes drawn after it.
+    // Call this after strokes has changed.  Returns false if there's no usable snapshot, in which case the region should be invalidated instead.
+    public boolean restore(BackingCanvas canvas, Overlay overlay, List<DrawablePath> strokes, Rect region) {
+        discardStale(strokes, canvas.getResizeRatio());
+        Checkpoint checkpoint = null;
+        for (Checkpoint candidate : checkpoints) {
+            if (isValid(candidate, strokes)) {
+                checkpoint = candidate; // Checkpoints are in order, so the last valid one is the newest.
+            }
+        }
+        if (checkpoint == null) {
+            return false;
+        }
+
+        Bitmap bitmap = checkpoint.bitmap;
+        if (bitmap == null) {
+            bitmap = readSpill(checkpoint);
+            if (bitmap == null) {
+                checkpoints.remove(checkpoint);
+                discard(checkpoint);
+                return false;
+            }
+        }
+        List<DrawablePath> replay = strokes.subList(checkpoint.strokeCount, strokes.size());
+        boolean restored = canvas.restoreLayerRegion(overlay, region, bitmap, replay);
+        if (bitmap != checkpoint.bitmap) {
+            BitmapPool.getInstance().release(bitmap);
+        }
+        if (restored) {
+            restoreCounter.increment();
+            replayedStrokesCounter.add(replay.size());
+        }
+        return restored;
+    }
+
+    // Drops every snapshot, such as when the strokes are cleared or replaced.
+    public void clear() {
+        for (Checkpoint checkpoint : checkpoints) {
+            discard(checkpoint);
+        }
+        checkpoints.clear();
+    }
+
+    // A snapshot can be used while the strokes it covers are still the first strokes in the list.  Strokes only change at the end of the list,
+    // so that's the case exactly when the last stroke it covers is still at the same position.
+    private static boolean isValid(Checkpoint checkpoint, List<DrawablePath> strokes) {
+        return (checkpoint.strokeCount <= strokes.size()) && (strokes.get(checkpoint.strokeCount - 1) == checkpoint.lastStroke);
+    }
+
+    // Drops snapshots that can never be used again: those taken at another resolution, and those whose strokes were replaced.
+    // Snapshots past the end of strokes are kept, since redoing may bring their strokes back.
+    private void discardStale(List<DrawablePath> strokes, float resizeRatio) {
+        for (int index = checkpoints.size() - 1; index >= 0; index--) {
+            Checkpoint checkpoint = checkpoints.get(index);
+            boolean replaced = (checkpoint.strokeCount <= strokes.size()) && !isValid(checkpoint, strokes);
+            if (replaced || (checkpoint.resizeRatio != resizeRatio)) {
+                discard(checkpoints.remove(index));
+            }
+        }
+    }
+
+    private int findInsertIndex(int strokeCount) {
+        int index = checkpoints.size();
+        while ((index > 0) && (checkpoints.get(index - 1).strokeCount > strokeCount)) {
+            index--;
+        }
+        return index;
+    }
+
+    // Spills the oldest snapshots in memory until the rest fit in the budget.  Newer snapshots stay in memory since they're restored first.
+    private void enforceBudget() {
+        long bytes = getMemoryBytes();
+        for (int index = 0; (index < checkpoints.size()) && (bytes > MEMORY_BUDGET_BYTES); index++) {
+            Checkpoint checkpoint = checkpoints.get(index);
+            if ((checkpoint.bitmap == null) || checkpoint.spilling) {
+                continue;
+            }
+            bytes -= checkpoint.bitmap.getByteCount();
+            if (!spill(checkpoint)) {
+                checkpoints.remove(index);
+                discard(checkpoint);
+                index--;
+            }
+        }
+    }
+
+    // Queues a snapshot to be written to disk.  Its bitmap is kept, and still used, until the write completes.  Returns false if it can't be spilled.
+    private boolean spill(final Checkpoint checkpoint) {
+        if (spillDirectory == null) {
+            return false;
+        }
+        if (!spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+            Log.d(TAG, "Unable to create " + spillDirectory.getPath());
+            return false;
+        }
+        checkpoint.file = new File(spillDirectory, SPILL_FILE_PREFIX + nextSpillNumber++ + SPILL_FILE_SUFFIX);
+        FileManager.writeCacheAsync(checkpoint.file, new WriteTask() {
+            @Override
+            public boolean writeTo(OutputStream out) throws IOException {
+                return !checkpoint.discarded && writePixels(checkpoint.bitmap, out);
+            }
+        }, this);
+        checkpoint.spilling = true;
+        spillCounter.increment();
+        return true;
+    }
+
+    @Override
+    public void onWriteComplete(File file) {
+        Checkpoint checkpoint = findSpilling(file);
+        if (checkpoint == null) {
+            return;
+        }
+        checkpoint.spilling = false;
+        BitmapPool.getInstance().release(checkpoint.bitmap);
+        checkpoint.bitmap = null;
+        if (checkpoint.discarded) {
+            file.delete();
+        }
+    }
+
+    @Override
+    public void onWriteAbandoned(File file) {
+        onWriteFailed(file);
+    }
+
+    @Override
+    public void onWriteFailed(File file) {
+        Checkpoint checkpoint = findSpilling(file);
+        if (checkpoint == null) {
+            return;
+        }
+        // Drop the snapshot rather than keep it in memory over budget.
+        checkpoint.spilling = false;
+        checkpoints.remove(checkpoint);
+        discard(checkpoint);
+    }
+
+    // Finds the snapshot being spilled to a file, including one that was discarded while it was written.
+    private Checkpoint findSpilling(File file) {
+        for (Checkpoint checkpoint : checkpoints) {
+            if (file.equals(checkpoint.file)) {
+                return checkpoint;
+            }
+        }
+        for (Checkpoint checkpoint : discardedWhileSpilling) {
+            if (file.equals(checkpoint.file)) {
+                discardedWhileSpilling.remove(checkpoint);
+                return checkpoint;
+            }
+        }
+        return null;
+    }
+
+    // Frees a snapshot that has been removed from the list.  A snapshot still being written keeps its bitmap until the write finishes.
+    private void discard(Checkpoint checkpoint) {
+        checkpoint.discarded = true;
+        if (checkpoint.spilling) {
+            discardedWhileSpilling.add(checkpoint);
+            return;
+        }
+        BitmapPool.getInstance().release(checkpoint.bitmap);
+        checkpoint.bitmap = null;
+        if (checkpoint.file != null) {
+            checkpoint.file.delete();
+        }
+    }
+
+    // Writes a bitmap's size followed by its pixels, copied out in bulk exactly as they're stored.  Reading them back with copyPixelsFromBuffer
+    // restores the premultiplied pixels exactly, which getPixels and setPixels wouldn't, since they convert to and from unpremultiplied colors.
+    private static boolean writePixels(Bitmap bitmap, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(bitmap.getWidth());
+        data.writeInt(bitmap.getHeight());
+        ByteBuffer pixels = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(pixels);
+        data.write(pixels.array(), 0, pixels.position());
+        data.flush();
+        return true;
+    }
+
+    // Reads a spilled snapshot into a bitmap from the shared pool, or returns null if it can't be read.
+    private Bitmap readSpill(Checkpoint checkpoint) {
+        DataInputStream data = null;
+        Bitmap bitmap = null;
+        try {
+            data = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint.file)));
+            int width = data.readInt();
+            int height = data.readInt();
+            bitmap = BitmapPool.getInstance().acquire(width, height, Bitmap.Config.ARGB_8888);
+            byte[] bytes = new byte[bitmap.getByteCount()];
+            data.readFully(bytes);
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(bytes));
+            return bitmap;
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Unable to read " + checkpoint.file.getPath() + ": " + e.getMessage());
+            BitmapPool.getInstance().release(bitmap);
+            return null;
+        }
+        finally {
+            if (data != null) {
+                try {
+                    data.close();
+                }
+                catch (IOException e) {
+                    Log.d(TAG, "Unable to close " + checkpoint.file.getPath());
+                }
+            }
+        }
+    }
+
+    // A snapshot of the layer once the first strokeCount strokes were drawn.  Held in bitmap, in file, or in both while it's being spilled.
+    private static class Checkpoint {
+        final int strokeCount;
+        final DrawablePath lastStroke;
+        final float resizeRatio;
+        Bitmap bitmap;
+        File file;
+        boolean spilling;
+        volatile boolean discarded; // Read on the write thread so an abandoned spill stops early.
+
+        Checkpoint(int strokeCount, DrawablePath lastStroke, float resizeRatio, Bitmap bitmap) {
+            this.strokeCount = strokeCount;
+            this.lastStroke = lastStroke;
+            this.resizeRatio = resizeRatio;
+            this.bitmap = bitmap;
+        }
+    }
+}
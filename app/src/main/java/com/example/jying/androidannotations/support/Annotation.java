@@ -1,10 +1,14 @@
 package com.example.jying.androidannotations.support;
 
 import android.graphics.Canvas;
+import android.graphics.Rect;
 
 /**
  * Created by jying on 7/9/2015.
  */
 public interface Annotation {
     void drawOnCanvas(Canvas canvas, float resizeRatio);
+
+    // Returns the area that drawOnCanvas touches, in background image pixels.  The resize ratio is only needed by annotations whose drawn size does not scale with the canvas.
+    Rect getBounds(int bgWidth, int bgHeight, float resizeRatio);
 }
@@ -25,8 +25,9 @@ public class AnnotationLayer {
     private int iconResourceID;
 
     protected Toast toast;
-    protected float activeResolutionRatio = .7f;
-    protected float backgroundResolutionRatio = .4f;
+    protected float activeResolutionRatio = .7f; // The ratio this layer would like while active.  A ResolutionGovernor may scale it to fit the device.
+    protected float backgroundResolutionRatio = .4f; // The ratio this layer would like while another layer is active.
+    protected ResolutionGovernor resolutionGovernor;
     protected LayerDelegate delegate;
     protected Overlay overlay;
     protected ViewGroup toolbar;
@@ -61,10 +62,13 @@ public class AnnotationLayer {
         showToolbar(active);
         if (active) {
             toast.show();
-            overlay.getBackingCanvas().setResizeRatio(activeResolutionRatio);
+        }
+        float preferredRatio = active ? activeResolutionRatio : backgroundResolutionRatio;
+        if (resolutionGovernor != null) {
+            resolutionGovernor.setPreferredRatio(this, preferredRatio);
         }
         else {
-            overlay.getBackingCanvas().setResizeRatio(backgroundResolutionRatio);
+            overlay.getBackingCanvas().setResizeRatio(preferredRatio);
         }
         overlay.onLayerActivationChanged(active);
         delegate.onOverlayBackingChanged();
@@ -100,6 +104,11 @@ public class AnnotationLayer {
         return overlay;
     }
 
+    // Lets a governor decide the final resolution of this layer's canvas instead of using the preferred ratios as they are.
+    public void setResolutionGovernor(ResolutionGovernor resolutionGovernor) {
+        this.resolutionGovernor = resolutionGovernor;
+    }
+
     public void addMenuItem(Menu menu) {
         MenuItem item = menu.add(name);
         item.setIcon(iconResourceID);
@@ -3,10 +3,17 @@ package com.example.jying.androidannotations.support;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Picture;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -14,6 +21,13 @@ import java.util.List;
  */
 public class BackingCanvas {
 
+    private static final float FULL_REDRAW_AREA_RATIO = .5f; // If the damaged area covers more than this portion of the bitmap, a full redraw is cheaper than clipping.
+    private static final int DAMAGE_PADDING_PX = 1; // Extra pixels added around damaged regions to cover anti-aliasing and rounding.
+    private static final long LAYER_CACHE_BUDGET_BYTES = 32 * 1024 * 1024; // The most memory that cached overlay layers may use.  Overlays that don't fit are drawn straight onto the composite.
+
+    private static HandlerThread renderThread; // Shared by every canvas that renders asynchronously.  Started on first use.
+    private static int nextCanvasNumber = 1; // Used to tell canvases apart in metrics.
+
     private Bitmap originalBitmap; // The original bitmap content at the original size
     private int width, height; // If the image is initially blank, we only need to save width and height to recreate the backing Bitmap.  Save these dimensions to conserve memory.
 
@@ -22,10 +36,58 @@ public class BackingCanvas {
     private Bitmap backingBitmap; // The bitmap on which drawings occur.  Does not necessarily have to be the original size.
     private Canvas backingCanvas; // Used to draw on the backingBitmap.
     private ArrayList<Overlay> overlays; // A list of lists of annotations that should be drawn.
+    private ArrayList<Rect> damagedRegions; // Regions of backingBitmap (in backingBitmap pixels) that must be redrawn on the next redrawDamaged call.
+    private Rect visibleRegion; // The part of the image (in original pixels) that is displayed, as last set by setVisibleRegion.  Damage outside of it is deferred until it scrolls into view.
+
+    // In layer caching mode, each overlay is rasterized into its own bitmap and backingBitmap is the composite of the background and every layer.
+    private boolean layerCaching;
+    private HashMap<Overlay, Layer> layers; // Overlays without an entry did not fit in the budget and are drawn straight onto the composite.
+
+    private long lastFullRedrawNanos, lastFullRedrawPixels; // How long the most recent full redraw took, and how many pixels it covered.
+
+    // In asynchronous mode, full redraws are rasterized into a new bitmap on the render thread and swapped in on the main thread.
+    // Until then, the previous bitmap keeps being displayed, and quickdraws and damage redraws keep drawing onto it synchronously.
+    private boolean asyncRendering;
+    private boolean progressiveRendering; // Whether background frames render the visible part first and show it before the rest is done.
+    private RenderFrame progressFrame; // A frame whose visible part is done and is drawn over the current bitmap until the frame is swapped in.
+    private float targetResizeRatio; // The resize ratio of the most recently requested frame.  resizeRatio is always the ratio of the displayed bitmap.
+    private Handler renderHandler, mainHandler;
+    private RenderDelegate renderDelegate;
+    private ArrayList<RenderFrame> outstandingFrames; // Frames requested but not yet swapped in, oldest first.  Only touched on the main thread.
+    private RenderFrame pendingFrame; // The newest frame that the render thread hasn't started.  Guarded by renderLock.
+    private final Object renderLock = new Object();
+
+    // Metrics entries, looked up once so recording doesn't allocate.
+    private final String metricsTag;
+    private final Metrics.Histogram redrawAllHistogram, renderFrameHistogram, redrawDamagedHistogram, blitHistogram;
+    private final Metrics.Counter redrawnPixelsCounter, redrawnAnnotationsCounter, droppedFramesCounter;
+    private final HashMap<Overlay, Metrics.Histogram> quickdrawHistograms; // Quickdraws are tagged by overlay as well.
 
     public BackingCanvas() {
         overlays = new ArrayList<Overlay>();
+        damagedRegions = new ArrayList<Rect>();
+        layers = new HashMap<Overlay, Layer>();
+        outstandingFrames = new ArrayList<RenderFrame>();
         resizeRatio = 1;
+        targetResizeRatio = 1;
+
+        synchronized (BackingCanvas.class) {
+            metricsTag = "canvas" + nextCanvasNumber++;
+        }
+        Metrics metrics = Metrics.getInstance();
+        redrawAllHistogram = metrics.getHistogram(Metrics.CANVAS_REDRAW_ALL, metricsTag);
+        renderFrameHistogram = metrics.getHistogram(Metrics.CANVAS_RENDER_FRAME, metricsTag);
+        redrawDamagedHistogram = metrics.getHistogram(Metrics.CANVAS_REDRAW_DAMAGED, metricsTag);
+        blitHistogram = metrics.getHistogram(Metrics.CANVAS_BLIT, metricsTag);
+        redrawnPixelsCounter = metrics.getCounter(Metrics.CANVAS_REDRAWN_PIXELS, metricsTag);
+        redrawnAnnotationsCounter = metrics.getCounter(Metrics.CANVAS_REDRAWN_ANNOTATIONS, metricsTag);
+        droppedFramesCounter = metrics.getCounter(Metrics.CANVAS_DROPPED_FRAMES, metricsTag);
+        quickdrawHistograms = new HashMap<Overlay, Metrics.Histogram>();
+    }
+
+    // Identifies this canvas in metrics.
+    public String getMetricsTag() {
+        return metricsTag;
     }
 
     public BackingCanvas(Bitmap originalBitmap) {
@@ -39,7 +101,13 @@ public class BackingCanvas {
     }
 
     public void setResizeRatio(float resizeRatio) {
+        if (asyncRendering && (backingBitmap != null)) {
+            requestFrame(resizeRatio); // The current bitmap stays on screen at the old size until the new one is ready.
+            return;
+        }
+
         this.resizeRatio = resizeRatio;
+        this.targetResizeRatio = resizeRatio;
 
         // Recalculate backing canvas based on the new resizeRatio.
         if (originalBitmap == null) {
@@ -49,7 +117,97 @@ public class BackingCanvas {
             setOriginalBitmap(originalBitmap);
         }
 
-        redrawAll(); // Redraw everything because we just erased it.
+        redrawEverything(true); // Redraw everything because we just erased it.  Annotations haven't changed, so they can be replayed from their recordings.
+    }
+
+    public float getResizeRatio() {
+        return resizeRatio;
+    }
+
+    // Enables or disables keeping a cached raster layer per overlay.  Editing one overlay then never replays the annotations of the others.
+    public void setLayerCaching(boolean layerCaching) {
+        this.layerCaching = layerCaching;
+        if (backingBitmap != null) {
+            redrawAll();
+        }
+    }
+
+    public boolean isLayerCaching() {
+        return layerCaching;
+    }
+
+    // Enables or disables rendering full redraws on a background thread.  Only call this on the main thread.
+    public void setAsyncRendering(boolean asyncRendering) {
+        this.asyncRendering = asyncRendering; // Cleared before finishing, so deferred damage is redrawn here rather than in yet another frame.
+        if (!asyncRendering) {
+            finishRendering();
+        }
+        else if (renderHandler == null) {
+            renderHandler = new Handler(getRenderLooper());
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+    }
+
+    // Enables or disables progressive background rendering.  The visible part of a frame is rendered first and shown, upscaled bitmap underneath, before the rest is finished.
+    // Only has an effect while rendering asynchronously.
+    public void setProgressiveRendering(boolean progressiveRendering) {
+        this.progressiveRendering = progressiveRendering;
+    }
+
+    public boolean isProgressiveRendering() {
+        return progressiveRendering;
+    }
+
+    public boolean isAsyncRendering() {
+        return asyncRendering;
+    }
+
+    // Sets who to notify when a background frame has been swapped in and the canvas needs to be redisplayed.
+    public void setRenderDelegate(RenderDelegate renderDelegate) {
+        this.renderDelegate = renderDelegate;
+    }
+
+    // Whether a requested frame hasn't been swapped in yet.
+    public boolean isRendering() {
+        return !outstandingFrames.isEmpty();
+    }
+
+    // Blocks until the most recently requested frame is rendered and swaps it in, and redraws any deferred damage.  Call this before reading the bitmap for export.
+    public void finishRendering() {
+        if (outstandingFrames.isEmpty()) {
+            redrawDamaged(null);
+            if (outstandingFrames.isEmpty()) {
+                return;
+            }
+            // Enough was damaged that redrawing it requested a frame, so finish that frame too.
+        }
+
+        RenderFrame frame = outstandingFrames.get(outstandingFrames.size() - 1);
+        boolean renderHere;
+        synchronized (renderLock) {
+            renderHere = (pendingFrame == frame);
+            if (renderHere) {
+                pendingFrame = null; // Take it from the render thread rather than waiting behind it.
+            }
+        }
+
+        if (renderHere) {
+            renderFrame(frame);
+        }
+        else {
+            synchronized (renderLock) {
+                while (!frame.rendered) {
+                    try {
+                        renderLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+        swapFrame(frame);
     }
 
     public int getNumLayers() {
@@ -60,9 +218,22 @@ public class BackingCanvas {
         return backingCanvas;
     }
 
+    // The width of the image that annotations are positioned against, in original pixels.
+    public int getOriginalWidth() {
+        return width;
+    }
+
+    // The height of the image that annotations are positioned against, in original pixels.
+    public int getOriginalHeight() {
+        return height;
+    }
+
     public void setOriginalBitmap(Bitmap originalBitmap) {
         this.originalBitmap = originalBitmap; // Save the original bitmap.
-        this.backingBitmap = Bitmap.createScaledBitmap(originalBitmap, (int) (originalBitmap.getWidth() * resizeRatio), (int) (originalBitmap.getHeight() * resizeRatio), false);
+        this.width = originalBitmap.getWidth();
+        this.height = originalBitmap.getHeight();
+        BitmapPool.getInstance().release(backingBitmap);
+        this.backingBitmap = BitmapPool.getInstance().acquireScaled(originalBitmap, (int) (originalBitmap.getWidth() * resizeRatio), (int) (originalBitmap.getHeight() * resizeRatio));
         this.backingCanvas = new Canvas(backingBitmap);
     }
 
@@ -71,7 +242,8 @@ public class BackingCanvas {
         this.width = width;
         this.height = height;
 
-        this.backingBitmap = Bitmap.createBitmap((int) (width * resizeRatio), (int) (height * resizeRatio), Bitmap.Config.ARGB_8888);
+        BitmapPool.getInstance().release(backingBitmap);
+        this.backingBitmap = BitmapPool.getInstance().acquire((int) (width * resizeRatio), (int) (height * resizeRatio), Bitmap.Config.ARGB_8888);
         this.backingCanvas = new Canvas(backingBitmap);
     }
 
@@ -88,27 +260,83 @@ public class BackingCanvas {
         backingCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
     }
 
+    // Sets the part of the image (in original pixels) that is displayed.  Call this whenever it changes, before the view is next drawn.
+    // Damage that was deferred while off screen and has just come into view is redrawn here, so drawOnCanvas only has to copy the bitmap.
+    public void setVisibleRegion(Rect region) {
+        if (visibleRegion == null) {
+            visibleRegion = new Rect();
+        }
+        visibleRegion.set(region);
+        if (isVisibleDamaged()) {
+            redrawDamaged();
+        }
+    }
+
     public void drawOnCanvas(Canvas canvas, Subview subview) {
+        long startNanos = System.nanoTime();
         Rect adjustedRect = subview.getAdjustedRectangle(backingCanvas, subview.getSubviewRectangle());
         canvas.drawBitmap(backingBitmap, adjustedRect, subview.getViewRectangle(), null);
+        if ((progressFrame != null) && progressFrame.lateRegions.isEmpty()) {
+            drawProgress(canvas, subview); // Skipped once anything has changed since the frame was requested, so recent edits aren't covered up.
+        }
+        blitHistogram.recordSince(startNanos);
     }
 
+    // The bitmap is returned to the shared pool when the resolution changes, so don't hold on to it past that.
     public Bitmap getBitmap() {
         return backingBitmap;
     }
 
     // Draws an annotation without disturbing any layers below.  Layers above are redrawn.
+    // Incremental annotations only draw the part that was added since they were last drawn.
     public void quickdrawAnnotation(Annotation newAnnotation, Overlay currentLayer) {
+        long startNanos = System.nanoTime();
+        quickdraw(newAnnotation, currentLayer);
+
+        Metrics.Histogram histogram = quickdrawHistograms.get(currentLayer);
+        if (histogram == null) {
+            histogram = Metrics.getInstance().getHistogram(Metrics.CANVAS_QUICKDRAW, Metrics.getTag(currentLayer, this));
+            quickdrawHistograms.put(currentLayer, histogram);
+        }
+        histogram.recordSince(startNanos);
+    }
+
+    private void quickdraw(Annotation newAnnotation, Overlay currentLayer) {
+        currentLayer.invalidateDisplayList();
+        Rect bounds = newAnnotation.getBounds(width, height, resizeRatio);
+        currentLayer.indexAnnotation(newAnnotation, bounds);
+        noteLateChange(bounds); // Frames already being rendered won't include this annotation's latest state.
+
+        // With a cached layer, draw onto it and recomposite the covered area.  No other layer is rasterized.
+        Layer layer = layers.get(currentLayer);
+        if (layer != null) {
+            Rect region = toBitmapRect(getQuickdrawBounds(newAnnotation)); // Bounds must be taken before an increment is drawn.
+            quickdrawOnCanvas(newAnnotation, layer.canvas);
+            if (region.intersect(0, 0, backingBitmap.getWidth(), backingBitmap.getHeight())) {
+                compositeRegion(region);
+                recordRedraw((long) region.width() * region.height(), 1);
+            }
+            return;
+        }
+
         // If any above layers require transparency, we must redraw all.
         for (int index = overlays.indexOf(currentLayer) + 1; index < overlays.size(); index++) {
             if (overlays.get(index).requiresTransparency()) {
+                if (asyncRendering) {
+                    // Show the annotation right away, and leave the layers above covered until the owner's next redrawDamaged, such as at the end of a gesture.
+                    // Requesting a frame here would redraw everything on every touch sample.
+                    Rect region = getQuickdrawBounds(newAnnotation); // Bounds must be taken before an increment is drawn.
+                    quickdrawOnCanvas(newAnnotation, backingCanvas);
+                    damageRegion(region, currentLayer);
+                    return;
+                }
                 redrawAll();
                 return;
             }
         }
 
         // Otherwise, quickdraw.
-        newAnnotation.drawOnCanvas(backingCanvas, resizeRatio);
+        quickdrawOnCanvas(newAnnotation, backingCanvas);
         for (int index = overlays.indexOf(currentLayer) + 1; index < overlays.size(); index++) {
             for (List<Annotation> annotations : overlays.get(index).getAnnotationSets()) {
                 for (Annotation annotation : annotations) {
@@ -124,16 +352,725 @@ public class BackingCanvas {
 
     public void removeAnnotationSet(Overlay overlay) {
         overlays.remove(overlay);
+        releaseLayer(layers.remove(overlay));
+        quickdrawHistograms.remove(overlay);
     }
 
+    // Redraws every annotation.  Display lists are kept, so an overlay whose annotations changed without being invalidated should call redrawAll(Overlay).
     public void redrawAll() {
+        if (asyncRendering && (backingBitmap != null)) {
+            requestFrame(targetResizeRatio);
+            return;
+        }
+        redrawEverything(false);
+    }
+
+    // Redraws every annotation after an overlay's annotations changed without being invalidated, rebuilding just that overlay's display list and spatial index.
+    public void redrawAll(Overlay changedOverlay) {
+        changedOverlay.invalidateDisplayList();
+        changedOverlay.invalidateSpatialIndex();
+        redrawAll();
+    }
+
+    // Redraws every overlay.  If requested, overlays are replayed from their display lists, which are recorded first if necessary.
+    private void redrawEverything(boolean replayDisplayLists) {
+        long startNanos = System.nanoTime();
+        damagedRegions.clear(); // Everything is about to be redrawn.
+        updateLayers();
         resetBackground(); // Reset the background to the original at the correct size.:
+        int annotationCount = 0;
         for (Overlay overlay : overlays) {
-            for (List<Annotation> annotations : overlay.getAnnotationSets()) {
-                for (Annotation annotation : annotations) {
-                    annotation.drawOnCanvas(backingCanvas, resizeRatio);
+            Layer layer = layers.get(overlay);
+            if (layer != null) {
+                // Rasterize the overlay into its own layer, then composite the layer.
+                layer.damagedRegions.clear();
+                layer.canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                annotationCount += replayDisplayLists ? drawOverlay(overlay, layer.canvas) : drawAnnotations(overlay, layer.canvas, null);
+                backingCanvas.drawBitmap(layer.bitmap, 0, 0, null);
+            }
+            else {
+                annotationCount += replayDisplayLists ? drawOverlay(overlay, backingCanvas) : drawAnnotations(overlay, backingCanvas, null);
+            }
+        }
+        recordRedraw((long) backingBitmap.getWidth() * backingBitmap.getHeight(), annotationCount);
+        lastFullRedrawNanos = System.nanoTime() - startNanos;
+        lastFullRedrawPixels = (long) backingBitmap.getWidth() * backingBitmap.getHeight();
+        redrawAllHistogram.record(lastFullRedrawNanos);
+    }
+
+    // Marks a region (in original image pixels) as needing to be redrawn on the next redrawDamaged call.
+    public void invalidateRegion(Rect region) {
+        invalidateRegion(region, null);
+    }
+
+    // Marks a region (in original image pixels) of one overlay as needing to be redrawn.  A null overlay damages every overlay.
+    public void invalidateRegion(Rect region, Overlay overlay) {
+        if ((region == null) || (backingBitmap == null)) {
+            return;
+        }
+        noteLateChange(region);
+        damageRegion(region, overlay);
+    }
+
+    private void damageRegion(Rect region, Overlay overlay) {
+        Rect damage = toBitmapRect(region);
+        if (!damage.intersect(0, 0, backingBitmap.getWidth(), backingBitmap.getHeight())) {
+            return; // The region is entirely off of the bitmap.
+        }
+
+        addDamage(damagedRegions, new Rect(damage));
+        for (Overlay damagedOverlay : overlays) {
+            if ((overlay != null) && (overlay != damagedOverlay)) {
+                continue;
+            }
+            damagedOverlay.invalidateDisplayList(); // Damage means the overlay's annotations changed.
+            Layer layer = layers.get(damagedOverlay);
+            if (layer != null) {
+                addDamage(layer.damagedRegions, new Rect(damage));
+            }
+        }
+    }
+
+    // Marks the area currently covered by an annotation as needing to be redrawn.  Call this both before and after an annotation changes.
+    public void invalidateAnnotation(Annotation annotation) {
+        invalidateAnnotation(annotation, null);
+    }
+
+    // Marks the area currently covered by an annotation belonging to the given overlay as needing to be redrawn.
+    public void invalidateAnnotation(Annotation annotation, Overlay overlay) {
+        Rect bounds = annotation.getBounds(width, height, resizeRatio);
+        invalidateRegion(bounds, overlay);
+        if (overlay != null) {
+            overlay.indexAnnotation(annotation, bounds);
+        }
+    }
+
+    // Clears and redraws only the damaged regions, replaying just the annotations that intersect them.
+    // Damage that is entirely outside of the last displayed part of the image is deferred until it's drawn.
+    public void redrawDamaged() {
+        long startNanos = System.nanoTime();
+        redrawDamaged((visibleRegion == null) ? null : Collections.singletonList(toBitmapRect(visibleRegion)));
+        redrawDamagedHistogram.recordSince(startNanos);
+    }
+
+    // Redraws the damaged regions that intersect any of the given areas (in backingBitmap pixels), or all of them if there are no areas.
+    private void redrawDamaged(List<Rect> areas) {
+        if (damagedRegions.isEmpty()) {
+            return;
+        }
+        ArrayList<Rect> regions = takeIntersecting(damagedRegions, areas);
+        if (regions.isEmpty()) {
+            return;
+        }
+
+        long damagedArea = getArea(regions);
+        long bitmapArea = (long) backingBitmap.getWidth() * backingBitmap.getHeight();
+        if ((layers.isEmpty()) && (damagedArea > FULL_REDRAW_AREA_RATIO * bitmapArea)) {
+            redrawAll(); // Most of the bitmap is damaged, so skip the per-annotation intersection tests.
+            return;
+        }
+
+        int annotationCount = 0;
+
+        // Re-rasterize the damaged parts of cached layers.  Layers that weren't damaged are left alone.
+        // Each layer region lies within a single composite region, so this takes exactly the layer damage under the regions being redrawn.
+        for (Overlay overlay : overlays) {
+            Layer layer = layers.get(overlay);
+            if ((layer == null) || layer.damagedRegions.isEmpty()) {
+                continue;
+            }
+            ArrayList<Rect> layerRegions = takeIntersecting(layer.damagedRegions, regions);
+            if (getArea(layerRegions) > FULL_REDRAW_AREA_RATIO * bitmapArea) {
+                layer.canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                annotationCount += drawAnnotations(overlay, layer.canvas, null);
+                layer.damagedRegions.clear(); // Deferred layer damage was redrawn too, but its composite regions are still pending.
+            }
+            else {
+                for (Rect region : layerRegions) {
+                    layer.canvas.save();
+                    layer.canvas.clipRect(region);
+                    layer.canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+                    annotationCount += drawAnnotations(overlay, layer.canvas, region);
+                    layer.canvas.restore();
+                }
+            }
+        }
+
+        // Rebuild the composite within each damaged region.
+        for (Rect region : regions) {
+            annotationCount += compositeRegion(region);
+        }
+        recordRedraw(damagedArea, annotationCount);
+    }
+
+    // Copies an overlay's cached layer so it can be restored later.  The copy comes from the shared BitmapPool, so release it there when done.
+    // Returns null if the overlay has no layer, or if the layer or a frame being rendered still has changes that aren't drawn yet.
+    public Bitmap copyLayer(Overlay overlay) {
+        Layer layer = layers.get(overlay);
+        if ((layer == null) || !layer.damagedRegions.isEmpty() || !outstandingFrames.isEmpty()) {
+            return null;
+        }
+        Bitmap copy = BitmapPool.getInstance().acquire(layer.bitmap.getWidth(), layer.bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        new Canvas(copy).drawBitmap(layer.bitmap, 0, 0, null); // The copy starts out transparent, so this copies the layer exactly.
+        return copy;
+    }
+
+    // Rebuilds a region (in original image pixels) of an overlay's cached layer from a copy taken by copyLayer, then draws the given annotations over it and updates the composite.
+    // Only annotations that intersect the region are replayed.  Returns false without changing anything if the copy no longer matches the layer, in which case the caller should invalidate the region instead.
+    public boolean restoreLayerRegion(Overlay overlay, Rect region, Bitmap copy, List<? extends Annotation> replay) {
+        Layer layer = layers.get(overlay);
+        if ((layer == null) || (region == null) || !outstandingFrames.isEmpty()
+                || (copy.getWidth() != layer.bitmap.getWidth()) || (copy.getHeight() != layer.bitmap.getHeight())) {
+            return false;
+        }
+        overlay.invalidateDisplayList();
+        Rect bitmapRegion = toBitmapRect(region);
+        if (!bitmapRegion.intersect(0, 0, backingBitmap.getWidth(), backingBitmap.getHeight())) {
+            return true; // The region is entirely off of the bitmap.
+        }
+
+        int annotationCount = 0;
+        layer.canvas.save();
+        layer.canvas.clipRect(bitmapRegion);
+        layer.canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        layer.canvas.drawBitmap(copy, bitmapRegion, bitmapRegion, null);
+        for (Annotation annotation : replay) {
+            if (Rect.intersects(toBitmapRect(annotation.getBounds(width, height, resizeRatio)), bitmapRegion)) {
+                annotation.drawOnCanvas(layer.canvas, resizeRatio);
+                annotationCount++;
+            }
+        }
+        layer.canvas.restore();
+
+        annotationCount += compositeRegion(bitmapRegion);
+        recordRedraw((long) bitmapRegion.width() * bitmapRegion.height(), annotationCount);
+        return true;
+    }
+
+    // How long the most recent full redraw took, whether on this thread or the render thread.
+    public long getLastFullRedrawNanos() {
+        return lastFullRedrawNanos;
+    }
+
+    public long getLastFullRedrawPixelCount() {
+        return lastFullRedrawPixels;
+    }
+
+    // Snapshots every overlay into immutable render commands and hands them to the render thread.  A frame that hasn't started yet is replaced.
+    private void requestFrame(float ratio) {
+        long startNanos = System.nanoTime();
+        targetResizeRatio = ratio;
+        RenderFrame frame = new RenderFrame(ratio, (int) (width * ratio), (int) (height * ratio), originalBitmap);
+        if (progressiveRendering && (visibleRegion != null)) {
+            frame.priorityRegion = new Rect((int) Math.floor(visibleRegion.left * ratio), (int) Math.floor(visibleRegion.top * ratio),
+                    (int) Math.ceil(visibleRegion.right * ratio), (int) Math.ceil(visibleRegion.bottom * ratio));
+        }
+        long layerBytes = (long) frame.width * frame.height * 4; // Layers are ARGB_8888.
+        long usedBytes = 0;
+        for (Overlay overlay : overlays) {
+            boolean cached = layerCaching && (usedBytes + layerBytes <= LAYER_CACHE_BUDGET_BYTES);
+            if (cached) {
+                usedBytes += layerBytes;
+            }
+            Picture displayList = overlay.getDisplayList(width, height);
+            if (displayList == null) {
+                frame.commands.add(new RenderCommand(overlay, recordOverlay(overlay, frame.width, frame.height, ratio), 1, cached)); // Recorded at the frame's size, since it can't be scaled.
+            }
+            else {
+                frame.commands.add(new RenderCommand(overlay, displayList, ratio, cached));
+            }
+        }
+
+        // The frame will redraw everything, so damage on the displayed bitmap no longer needs to be redrawn.
+        damagedRegions.clear();
+        for (Layer layer : layers.values()) {
+            layer.damagedRegions.clear();
+        }
+
+        boolean posted;
+        synchronized (renderLock) {
+            posted = (pendingFrame != null);
+            if (posted) {
+                outstandingFrames.remove(pendingFrame); // Superseded before it was started.
+                droppedFramesCounter.increment();
+            }
+            pendingFrame = frame;
+        }
+        outstandingFrames.add(frame);
+        if (!posted) {
+            renderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final RenderFrame frame;
+                    synchronized (renderLock) {
+                        frame = pendingFrame;
+                        pendingFrame = null;
+                    }
+                    if (frame == null) {
+                        return; // finishRendering took it.
+                    }
+                    renderFrame(frame);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            swapFrame(frame);
+                        }
+                    });
+                }
+            });
+        }
+        redrawAllHistogram.recordSince(startNanos); // Only the snapshot is on this thread.  Rasterizing is measured by renderFrameHistogram.
+    }
+
+    // Rasterizes a frame.  Runs on the render thread, or on the main thread from finishRendering.
+    private void renderFrame(RenderFrame frame) {
+        long startNanos = System.nanoTime();
+        Bitmap bitmap;
+        if (frame.originalBitmap == null) {
+            bitmap = BitmapPool.getInstance().acquire(frame.width, frame.height, Bitmap.Config.ARGB_8888);
+        }
+        else {
+            bitmap = BitmapPool.getInstance().acquireScaled(frame.originalBitmap, frame.width, frame.height);
+        }
+        Canvas canvas = new Canvas(bitmap);
+        for (RenderCommand command : frame.commands) {
+            if (command.cached) {
+                frame.layers.put(command.overlay, new Layer(frame.width, frame.height));
+            }
+        }
+
+        // Draw every overlay one tile at a time.  The first tile is the visible part, which is shown as soon as it's done.
+        List<Rect> tiles = getTiles(frame);
+        for (int index = 0; index < tiles.size(); index++) {
+            Rect tile = tiles.get(index);
+            for (RenderCommand command : frame.commands) {
+                if (command.cached) {
+                    Layer layer = frame.layers.get(command.overlay);
+                    layer.canvas.save();
+                    layer.canvas.clipRect(tile);
+                    command.draw(layer.canvas);
+                    layer.canvas.restore();
+                    canvas.drawBitmap(layer.bitmap, tile, tile, null);
+                }
+                else {
+                    canvas.save();
+                    canvas.clipRect(tile);
+                    command.draw(canvas);
+                    canvas.restore();
                 }
             }
+            if ((index == 0) && (tiles.size() > 1)) {
+                publishProgress(frame, bitmap, tile);
+            }
+        }
+
+        synchronized (renderLock) {
+            frame.bitmap = bitmap;
+            frame.canvas = canvas;
+            frame.renderNanos = System.nanoTime() - startNanos;
+            frame.rendered = true;
+            renderFrameHistogram.record(frame.renderNanos);
+            renderLock.notifyAll();
+        }
+    }
+
+    // Displays a rendered frame, then redraws whatever changed after it was requested.  Older frames still in flight are dropped.
+    private void swapFrame(RenderFrame frame) {
+        int index = outstandingFrames.indexOf(frame);
+        if (index < 0) {
+            // A newer frame was already swapped in, so this one is never displayed.
+            droppedFramesCounter.increment();
+            BitmapPool.getInstance().release(frame.bitmap);
+            for (Layer layer : frame.layers.values()) {
+                releaseLayer(layer);
+            }
+            return;
+        }
+        outstandingFrames.subList(0, index + 1).clear();
+        progressFrame = null;
+
+        // The previous buffers are only ever read on this thread, so they can be pooled as soon as they're replaced.
+        BitmapPool.getInstance().release(backingBitmap);
+        for (Layer layer : layers.values()) {
+            releaseLayer(layer);
+        }
+
+        resizeRatio = frame.resizeRatio;
+        backingBitmap = frame.bitmap;
+        backingCanvas = frame.canvas;
+        layers = frame.layers;
+        for (Overlay overlay : new ArrayList<Overlay>(layers.keySet())) {
+            if (!overlays.contains(overlay)) {
+                releaseLayer(layers.remove(overlay)); // Removed while the frame was rendering.
+            }
+        }
+        damagedRegions.clear();
+        recordRedraw((long) frame.width * frame.height, 0);
+        lastFullRedrawNanos = frame.renderNanos;
+        lastFullRedrawPixels = (long) frame.width * frame.height;
+
+        for (Rect region : frame.lateRegions) {
+            damageRegion(region, null);
+        }
+        redrawDamaged();
+
+        if (renderDelegate != null) {
+            renderDelegate.onRenderComplete(this);
+        }
+    }
+
+    // Splits a frame into the tiles it's rendered in.  With a priority region, that comes first, followed by up to four bands around it.  Otherwise, the whole frame is one tile.
+    private static List<Rect> getTiles(RenderFrame frame) {
+        ArrayList<Rect> tiles = new ArrayList<Rect>();
+        Rect whole = new Rect(0, 0, frame.width, frame.height);
+        Rect priority = (frame.priorityRegion == null) ? null : new Rect(frame.priorityRegion);
+        if ((priority == null) || !priority.intersect(whole) || priority.equals(whole)) {
+            tiles.add(whole);
+            return tiles;
+        }
+
+        tiles.add(priority);
+        Rect[] bands = {
+                new Rect(0, 0, frame.width, priority.top),
+                new Rect(0, priority.bottom, frame.width, frame.height),
+                new Rect(0, priority.top, priority.left, priority.bottom),
+                new Rect(priority.right, priority.top, frame.width, priority.bottom)
+        };
+        for (Rect band : bands) {
+            if (!band.isEmpty()) {
+                tiles.add(band);
+            }
+        }
+        return tiles;
+    }
+
+    // Lets the main thread show a finished tile of a frame that is still rendering.  Called on the render thread.
+    private void publishProgress(final RenderFrame frame, final Bitmap bitmap, final Rect tile) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!outstandingFrames.contains(frame)) {
+                    return; // Already swapped in or dropped.
+                }
+                frame.progressBitmap = bitmap;
+                frame.progressRegion = tile;
+                progressFrame = frame;
+                if (renderDelegate != null) {
+                    renderDelegate.onRenderProgress(BackingCanvas.this);
+                }
+            }
+        });
+    }
+
+    // Draws the finished tile of the frame in progress over the current bitmap.
+    // The rest of the frame's bitmap may still be being written to on the render thread, but only the finished tile is read.
+    private void drawProgress(Canvas canvas, Subview subview) {
+        Rect subviewRect = subview.getSubviewRectangle();
+        Rect viewRect = subview.getViewRectangle();
+        float scaleX = (float) viewRect.width() / subviewRect.width();
+        float scaleY = (float) viewRect.height() / subviewRect.height();
+        Rect region = progressFrame.progressRegion;
+        float ratio = progressFrame.resizeRatio;
+        RectF destination = new RectF(viewRect.left + (region.left / ratio - subviewRect.left) * scaleX,
+                viewRect.top + (region.top / ratio - subviewRect.top) * scaleY,
+                viewRect.left + (region.right / ratio - subviewRect.left) * scaleX,
+                viewRect.top + (region.bottom / ratio - subviewRect.top) * scaleY);
+        canvas.drawBitmap(progressFrame.progressBitmap, region, destination, null);
+    }
+
+    // Whether any damage intersects the part of the image that was last displayed.
+    private boolean isVisibleDamaged() {
+        Rect visible = toBitmapRect(visibleRegion);
+        for (Rect region : damagedRegions) {
+            if (Rect.intersects(region, visible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removes and returns the regions that intersect any of the given areas.  A null list of areas takes every region.
+    private static ArrayList<Rect> takeIntersecting(List<Rect> regions, List<Rect> areas) {
+        ArrayList<Rect> taken = new ArrayList<Rect>();
+        for (int index = regions.size() - 1; index >= 0; index--) {
+            if (areas == null) {
+                taken.add(regions.remove(index));
+                continue;
+            }
+            for (Rect area : areas) {
+                if (Rect.intersects(regions.get(index), area)) {
+                    taken.add(regions.remove(index));
+                    break;
+                }
+            }
+        }
+        return taken;
+    }
+
+    // Records that a region (in original image pixels) changed after outstanding frames were snapshotted, so it's redrawn once they're swapped in.
+    private void noteLateChange(Rect region) {
+        if (outstandingFrames.isEmpty()) {
+            return;
+        }
+        Rect lateRegion = (region == null) ? new Rect(0, 0, width, height) : region;
+        for (RenderFrame frame : outstandingFrames) {
+            frame.lateRegions.add(new Rect(lateRegion));
+        }
+    }
+
+    // Records an overlay's annotations at a specific resize ratio, for overlays that can't provide a resolution-independent display list.
+    private static Picture recordOverlay(Overlay overlay, int width, int height, float ratio) {
+        Picture picture = new Picture();
+        Canvas recordingCanvas = picture.beginRecording(width, height);
+        for (List<Annotation> annotations : overlay.getAnnotationSets()) {
+            for (Annotation annotation : annotations) {
+                annotation.drawOnCanvas(recordingCanvas, ratio);
+            }
+        }
+        picture.endRecording();
+        return picture;
+    }
+
+    // Records every overlay at a resize ratio into one picture, such as to draw the annotations at full resolution away from the main thread.
+    // The picture is a snapshot, so later changes to the annotations don't affect it.  Must be called on the main thread.
+    public Picture recordAnnotations(float ratio) {
+        Picture picture = new Picture();
+        Canvas recordingCanvas = picture.beginRecording((int) (width * ratio), (int) (height * ratio));
+        for (Overlay overlay : overlays) {
+            Picture displayList = overlay.getDisplayList(width, height);
+            if (displayList == null) {
+                for (List<Annotation> annotations : overlay.getAnnotationSets()) {
+                    for (Annotation annotation : annotations) {
+                        annotation.drawOnCanvas(recordingCanvas, ratio);
+                    }
+                }
+            }
+            else {
+                recordingCanvas.save();
+                recordingCanvas.scale(ratio, ratio);
+                recordingCanvas.drawPicture(displayList);
+                recordingCanvas.restore();
+            }
+        }
+        picture.endRecording();
+        return picture;
+    }
+
+    private static synchronized Looper getRenderLooper() {
+        if (renderThread == null) {
+            renderThread = new HandlerThread("BackingCanvasRenderer");
+            renderThread.start();
+        }
+        return renderThread.getLooper();
+    }
+
+    private Rect getQuickdrawBounds(Annotation annotation) {
+        if (annotation instanceof IncrementalAnnotation) {
+            return ((IncrementalAnnotation) annotation).getIncrementBounds(width, height, resizeRatio);
+        }
+        return annotation.getBounds(width, height, resizeRatio);
+    }
+
+    private void quickdrawOnCanvas(Annotation annotation, Canvas canvas) {
+        if (annotation instanceof IncrementalAnnotation) {
+            ((IncrementalAnnotation) annotation).drawIncrementOnCanvas(canvas, resizeRatio);
+        }
+        else {
+            annotation.drawOnCanvas(canvas, resizeRatio);
+        }
+    }
+
+    // Resets the background within a region of the composite and draws every overlay over it.  Returns the number of annotations replayed.
+    private int compositeRegion(Rect region) {
+        int annotationCount = 0;
+        backingCanvas.save();
+        backingCanvas.clipRect(region);
+
+        // Reset the background within the region.
+        backingCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        if (originalBitmap != null) {
+            backingCanvas.drawBitmap(originalBitmap, null, new Rect(0, 0, backingBitmap.getWidth(), backingBitmap.getHeight()), null);
+        }
+
+        // Draw each overlay in order, either from its cached layer or by replaying the annotations that touch this region.
+        for (Overlay overlay : overlays) {
+            Layer layer = layers.get(overlay);
+            if (layer != null) {
+                backingCanvas.drawBitmap(layer.bitmap, region, region, null);
+            }
+            else {
+                annotationCount += drawAnnotations(overlay, backingCanvas, region);
+            }
+        }
+        backingCanvas.restore();
+        return annotationCount;
+    }
+
+    // Draws a whole overlay onto a canvas, using one replay of its display list when possible.  Returns the number of annotations drawn directly.
+    private int drawOverlay(Overlay overlay, Canvas canvas) {
+        Picture displayList = overlay.getDisplayList(width, height);
+        if (displayList == null) {
+            return drawAnnotations(overlay, canvas, null);
+        }
+        canvas.save();
+        canvas.scale(resizeRatio, resizeRatio);
+        canvas.drawPicture(displayList);
+        canvas.restore();
+        return 0;
+    }
+
+    // Draws an overlay's annotations onto a canvas.  If a region is given, only annotations that intersect it are drawn.
+    private int drawAnnotations(Overlay overlay, Canvas canvas, Rect region) {
+        int annotationCount = 0;
+        if (region != null) {
+            // The index returns annotations in the order they were indexed, which overlays keep the same as the order they're drawn in.
+            for (Annotation annotation : overlay.getSpatialIndex().query(toOriginalRect(region))) {
+                annotation.drawOnCanvas(canvas, resizeRatio);
+                annotationCount++;
+            }
+            return annotationCount;
+        }
+
+        for (List<Annotation> annotations : overlay.getAnnotationSets()) {
+            for (Annotation annotation : annotations) {
+                annotation.drawOnCanvas(canvas, resizeRatio);
+                annotationCount++;
+            }
+        }
+        return annotationCount;
+    }
+
+    // Allocates or releases cached layers so that they match the caching mode, budget and current bitmap size.
+    private void updateLayers() {
+        if (!layerCaching) {
+            for (Layer layer : layers.values()) {
+                releaseLayer(layer);
+            }
+            layers.clear();
+            return;
+        }
+
+        int layerWidth = backingBitmap.getWidth();
+        int layerHeight = backingBitmap.getHeight();
+        long layerBytes = (long) layerWidth * layerHeight * 4; // Layers are ARGB_8888.
+        long usedBytes = 0;
+        for (Overlay overlay : overlays) {
+            Layer layer = layers.get(overlay);
+            if (usedBytes + layerBytes > LAYER_CACHE_BUDGET_BYTES) {
+                releaseLayer(layers.remove(overlay)); // Out of budget, so this overlay draws straight onto the composite.
+                continue;
+            }
+            if ((layer == null) || (layer.bitmap.getWidth() != layerWidth) || (layer.bitmap.getHeight() != layerHeight)) {
+                releaseLayer(layer);
+                layers.put(overlay, new Layer(layerWidth, layerHeight));
+            }
+            usedBytes += layerBytes;
+        }
+    }
+
+    private static void releaseLayer(Layer layer) {
+        if (layer != null) {
+            BitmapPool.getInstance().release(layer.bitmap);
+        }
+    }
+
+    // Converts a rectangle in backingBitmap pixels to original image pixels, rounding outward.
+    private Rect toOriginalRect(Rect region) {
+        return new Rect((int) Math.floor(region.left / resizeRatio),
+                (int) Math.floor(region.top / resizeRatio),
+                (int) Math.ceil(region.right / resizeRatio),
+                (int) Math.ceil(region.bottom / resizeRatio));
+    }
+
+    // Converts a rectangle in original image pixels to backingBitmap pixels, rounding outward so partially covered pixels are included.
+    private Rect toBitmapRect(Rect region) {
+        return new Rect((int) Math.floor(region.left * resizeRatio) - DAMAGE_PADDING_PX,
+                (int) Math.floor(region.top * resizeRatio) - DAMAGE_PADDING_PX,
+                (int) Math.ceil(region.right * resizeRatio) + DAMAGE_PADDING_PX,
+                (int) Math.ceil(region.bottom * resizeRatio) + DAMAGE_PADDING_PX);
+    }
+
+    // Adds a damaged rectangle to a list, merging it with any overlapping rectangles so no pixel gets redrawn twice.
+    private static void addDamage(List<Rect> regions, Rect damage) {
+        for (int index = regions.size() - 1; index >= 0; index--) {
+            if (Rect.intersects(regions.get(index), damage)) {
+                damage.union(regions.remove(index));
+                index = regions.size(); // The grown rectangle may now overlap regions that were already checked.
+            }
+        }
+        regions.add(damage);
+    }
+
+    private static long getArea(List<Rect> regions) {
+        long area = 0;
+        for (Rect region : regions) {
+            area += (long) region.width() * region.height();
+        }
+        return area;
+    }
+
+    private void recordRedraw(long pixels, int annotations) {
+        redrawnPixelsCounter.add(pixels);
+        redrawnAnnotationsCounter.add(annotations);
+    }
+
+    // A cached raster of a single overlay at the current resize ratio.
+    private static class Layer {
+        Bitmap bitmap;
+        Canvas canvas;
+        ArrayList<Rect> damagedRegions;
+
+        Layer(int width, int height) {
+            bitmap = BitmapPool.getInstance().acquire(width, height, Bitmap.Config.ARGB_8888);
+            canvas = new Canvas(bitmap);
+            damagedRegions = new ArrayList<Rect>();
+        }
+    }
+
+    // An immutable instruction to draw one overlay's recording into a frame.
+    private static class RenderCommand {
+        final Overlay overlay; // Only used as the key of the overlay's layer.  None of its state is read on the render thread.
+        final Picture displayList;
+        final float scale;
+        final boolean cached; // Whether the overlay gets its own layer.
+
+        RenderCommand(Overlay overlay, Picture displayList, float scale, boolean cached) {
+            this.overlay = overlay;
+            this.displayList = displayList;
+            this.scale = scale;
+            this.cached = cached;
+        }
+
+        void draw(Canvas canvas) {
+            canvas.save();
+            canvas.scale(scale, scale);
+            canvas.drawPicture(displayList);
+            canvas.restore();
+        }
+    }
+
+    // A full redraw requested from the main thread.  The inputs are fixed when it's requested, and the outputs are filled in by renderFrame.
+    private static class RenderFrame {
+        final float resizeRatio;
+        final int width, height;
+        final Bitmap originalBitmap;
+        final ArrayList<RenderCommand> commands = new ArrayList<RenderCommand>();
+        final ArrayList<Rect> lateRegions = new ArrayList<Rect>(); // Regions (in original image pixels) that changed after this frame was requested.  Main thread only.
+        Rect priorityRegion; // The part of the frame (in frame pixels) to render and show first, or null to render it all at once.
+        Bitmap progressBitmap; // The bitmap being rendered and the tile of it that's finished, once the first tile is done.  Main thread only.
+        Rect progressRegion;
+
+        Bitmap bitmap;
+        Canvas canvas;
+        HashMap<Overlay, Layer> layers = new HashMap<Overlay, Layer>();
+        long renderNanos;
+        boolean rendered;
+
+        RenderFrame(float resizeRatio, int width, int height, Bitmap originalBitmap) {
+            this.resizeRatio = resizeRatio;
+            this.width = width;
+            this.height = height;
+            this.originalBitmap = originalBitmap;
         }
     }
 
@@ -0,0 +1,163 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of mutable bitmaps shared by every BackingCanvas and the edge detector, so that switching resolutions reuses memory instead of allocating it.
+ * Bitmaps are bucketed by allocation size.  On API 19 and up any bitmap that is large enough is reconfigured to the requested size; below that, only exact matches are reused.
+ */
+public class BitmapPool {
+
+    private static final int BUCKET_BYTES = 64 * 1024; // Allocation sizes are rounded up to a multiple of this to form buckets.
+    private static final float MAX_OVERSIZE_RATIO = 1.5f; // Never hand out a bitmap whose allocation is this much larger than needed, since the excess is wasted until it's released.
+    private static final long MAX_BUDGET_BYTES = 32 * 1024 * 1024;
+    private static final int BUDGET_HEAP_DIVISOR = 8; // By default, pooled bitmaps may use up to this fraction of the heap, capped at MAX_BUDGET_BYTES.
+
+    private static BitmapPool instance;
+
+    private TreeMap<Integer, List<Bitmap>> buckets; // Free bitmaps, keyed by rounded allocation size.
+    private LinkedList<Bitmap> releaseOrder; // Free bitmaps, least recently released first.  Used to evict once over budget.
+    private long budgetBytes;
+    private long pooledBytes;
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / BUDGET_HEAP_DIVISOR));
+        }
+        return instance;
+    }
+
+    public BitmapPool(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        buckets = new TreeMap<Integer, List<Bitmap>>();
+        releaseOrder = new LinkedList<Bitmap>();
+    }
+
+    // Gets a mutable, fully transparent bitmap of the given size, reusing a pooled one when possible.
+    public synchronized Bitmap acquire(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = takeReusable(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    // Gets a mutable copy of a bitmap scaled to the given size.  Scaling is unfiltered, like Bitmap.createScaledBitmap(source, width, height, false).
+    public Bitmap acquireScaled(Bitmap source, int width, int height) {
+        Bitmap.Config config = (source.getConfig() == null) ? Bitmap.Config.ARGB_8888 : source.getConfig();
+        Bitmap bitmap = acquire(width, height, config);
+        new Canvas(bitmap).drawBitmap(source, null, new Rect(0, 0, width, height), null);
+        return bitmap;
+    }
+
+    // Returns a bitmap to the pool.  The caller must not use it afterwards.  Bitmaps that don't fit in the budget are recycled, oldest first.
+    public synchronized void release(Bitmap bitmap) {
+        if ((bitmap == null) || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        int bytes = getAllocationBytes(bitmap);
+        if (bytes > budgetBytes) {
+            bitmap.recycle();
+            return;
+        }
+
+        Integer key = getBucketKey(bytes);
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        if (bucket.contains(bitmap)) {
+            return; // Already released.
+        }
+        bucket.add(bitmap);
+        releaseOrder.addLast(bitmap);
+        pooledBytes += bytes;
+        trimToBudget();
+    }
+
+    // Recycles every free bitmap.  Call this when the system is low on memory.
+    public synchronized void clear() {
+        long budget = budgetBytes;
+        budgetBytes = 0;
+        trimToBudget();
+        budgetBytes = budget;
+    }
+
+    // Removes and returns a free bitmap that can become the requested size, or null if there isn't one.
+    private Bitmap takeReusable(int width, int height, Bitmap.Config config) {
+        int neededBytes = width * height * getBytesPerPixel(config);
+        int maxBytes = (int) (neededBytes * MAX_OVERSIZE_RATIO);
+        for (Map.Entry<Integer, List<Bitmap>> entry : buckets.tailMap(getBucketKey(neededBytes)).entrySet()) {
+            if (entry.getKey() > getBucketKey(maxBytes)) {
+                break;
+            }
+            Iterator<Bitmap> iterator = entry.getValue().iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (!canReuse(bitmap, width, height, config, neededBytes)) {
+                    continue;
+                }
+                iterator.remove();
+                releaseOrder.remove(bitmap);
+                pooledBytes -= getAllocationBytes(bitmap);
+                if ((bitmap.getWidth() != width) || (bitmap.getHeight() != height) || (bitmap.getConfig() != config)) {
+                    bitmap.reconfigure(width, height, config);
+                }
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap bitmap, int width, int height, Bitmap.Config config, int neededBytes) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount() >= neededBytes;
+        }
+        return (bitmap.getWidth() == width) && (bitmap.getHeight() == height) && (bitmap.getConfig() == config); // Bitmaps can't be reconfigured before KitKat.
+    }
+
+    private void trimToBudget() {
+        while ((pooledBytes > budgetBytes) && !releaseOrder.isEmpty()) {
+            Bitmap bitmap = releaseOrder.removeFirst();
+            int bytes = getAllocationBytes(bitmap);
+            buckets.get(getBucketKey(bytes)).remove(bitmap);
+            pooledBytes -= bytes;
+            bitmap.recycle();
+        }
+    }
+
+    private static int getAllocationBytes(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static Integer getBucketKey(int bytes) {
+        return (bytes + BUCKET_BYTES - 1) / BUCKET_BYTES;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if ((config == Bitmap.Config.RGB_565) || (config == Bitmap.Config.ARGB_4444)) {
+            return 2;
+        }
+        return 4;
+    }
+
+}
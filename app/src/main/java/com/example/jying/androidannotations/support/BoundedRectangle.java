@@ -10,6 +10,7 @@ import com.example.jying.androidannotations.textbox.BoundsModificationRecord;
 public class BoundedRectangle {
 
     protected Rect parent, child;
+    private final Rect modified = new Rect(); // Scratch rectangle for the enforce methods, which run on every pan and zoom.
 
     protected boolean leftBoundModified;
     protected boolean topBoundModified;
@@ -44,7 +45,7 @@ public class BoundedRectangle {
 
     // Ensures that the size of child is not bigger than the parent.
     public void enforceParentSize() {
-        Rect modified = new Rect(child);
+        modified.set(child);
         if (child.width() > parent.width()) {
             modified.left = parent.left;
             modified.right = parent.right;
@@ -58,7 +59,7 @@ public class BoundedRectangle {
     }
 
     public void enforceParentBounds() {
-        Rect modified = new Rect(child); // The rectangle that results after any bounds modifications
+        modified.set(child); // The rectangle that results after any bounds modifications
         int dx = 0;
         int dy = 0;
 
@@ -81,7 +82,7 @@ public class BoundedRectangle {
     }
 
     public void enforceMinWidth(int minWidth, float minWidthModifier) {
-        Rect modified = new Rect(child); // The rectangle that results after any bounds modifications
+        modified.set(child); // The rectangle that results after any bounds modifications
         if (child.width() < minWidth) {
             int dx = minWidth - child.width();
             modified.left -= dx * minWidthModifier;
@@ -93,7 +94,7 @@ public class BoundedRectangle {
     }
 
     public void enforceMinHeight(int minHeight, float minHeightModifier) {
-        Rect modified = new Rect(child); // The rectangle that results after any bounds modifications
+        modified.set(child); // The rectangle that results after any bounds modifications
         if (child.height() < minHeight) {
             int dy = minHeight - child.height();
             modified.top -= dy * minHeightModifier;
@@ -0,0 +1,13 @@
+package com.example.jying.androidannotations.support;
+
+import java.io.File;
+
+/**
+ * Notified on the main thread as an ImageExporter writes an image.
+ */
+public interface ExportDelegate {
+    void onExportProgress(float fraction); // Between 0 and 1.
+    void onExportComplete(File file);
+    void onExportCancelled();
+    void onExportFailed();
+}
@@ -3,21 +3,157 @@ package com.example.jying.androidannotations.support;
 import android.content.Context;
 import android.media.MediaScannerConnection;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import com.example.jying.androidannotations.R;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by jying on 5/21/2015.
+ * Files written for the user go through a bounded queue and are written one at a time on a background thread.
+ * Each is written to a temporary file next to its destination, synced to disk and renamed into place, so a destination never holds a partly written file.
+ * Media scans for finished files are batched until the queue drains.
+ * Cache files the app can rebuild go through a separate, unbounded queue without syncing, so they never hold up or crowd out files written for the user.
  */
 public class FileManager {
 
+    private static final String TAG = "FileManager";
+    private static final String CAPTURE_FILE_NAME = "capture.jpg";
+    private static final String CAPTURE_TILE_DIRECTORY_NAME = "capture_tiles";
+    private static final String UNDO_CHECKPOINT_DIRECTORY_NAME = "undo_checkpoints";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int MAX_PENDING_WRITES = 4; // Writes queued behind the one in progress.  More are rejected until the queue catches up.
+    private static final int WRITE_BUFFER_BYTES = 64 * 1024;
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    // Write results
+    private static final int WRITE_COMPLETE = 0;
+    private static final int WRITE_ABANDONED = 1;
+    private static final int WRITE_FAILED = 2;
+
+    private static ThreadPoolExecutor writeExecutor;
+    private static ThreadPoolExecutor cacheWriteExecutor;
+    private static Handler mainHandler;
+    private static volatile boolean syncWrites = true; // Whether files are synced to disk before being renamed into place.
+    private static final ArrayList<String> pendingScanPaths = new ArrayList<String>(); // Finished files waiting for a batched media scan.  Guarded by itself.
+    private static final ArrayList<String> pendingScanTypes = new ArrayList<String>();
+
+    // Metrics entries
+    private static final Metrics.Histogram writeHistogram = Metrics.getInstance().getHistogram(Metrics.FILE_WRITE, TAG); // From the write starting to the file being in place.
+    private static final Metrics.Histogram queueHistogram = Metrics.getInstance().getHistogram(Metrics.FILE_QUEUE_WAIT, TAG); // From being queued to starting.
+    private static final Metrics.Histogram megabyteHistogram = Metrics.getInstance().getHistogram(Metrics.FILE_WRITE_PER_MEGABYTE, TAG); // Inverse throughput of each write.
+    private static final Metrics.Counter writtenBytesCounter = Metrics.getInstance().getCounter(Metrics.FILE_WRITTEN_BYTES, TAG);
+    private static final Metrics.Counter rejectedWritesCounter = Metrics.getInstance().getCounter(Metrics.FILE_REJECTED_WRITES, TAG);
+
+    // Sets whether queued files are synced to disk before they're renamed into place.  Syncing is slower, but the file survives a power loss once the write completes.
+    public static void setSyncWrites(boolean sync) {
+        syncWrites = sync;
+    }
+
+    public static boolean isSyncWrites() {
+        return syncWrites;
+    }
+
+    // Whether the write queue is full, so that another write would be rejected.
+    public static synchronized boolean isWriteQueueFull() {
+        return getWriteExecutor().getQueue().remainingCapacity() == 0;
+    }
+
+    // Queues a file to be written on the write thread.  If mimeType isn't null, the file is media scanned once written.
+    // Returns false without queueing anything if too many writes are already pending.  The delegate may be null.
+    public static synchronized boolean writeAsync(final Context context, final File file, final String mimeType, final WriteTask task, final WriteDelegate delegate) {
+        final long queuedNanos = System.nanoTime();
+        try {
+            getWriteExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    queueHistogram.recordSince(queuedNanos);
+                    int result = performWrite(file, task, syncWrites);
+                    if ((result == WRITE_COMPLETE) && (mimeType != null)) {
+                        synchronized (pendingScanPaths) {
+                            pendingScanPaths.add(file.getPath());
+                            pendingScanTypes.add(mimeType);
+                        }
+                    }
+                    if (writeExecutor.getQueue().isEmpty()) {
+                        flushScans(context);
+                    }
+                    postResult(file, result, delegate);
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            rejectedWritesCounter.increment();
+            return false;
+        }
+    }
+
+    // Queues a file in the app's cache to be written on the cache write thread.  Cache writes are never rejected and never synced to disk,
+    // since the app can do without the file if it's lost.  The delegate may be null.
+    public static synchronized void writeCacheAsync(final File file, final WriteTask task, final WriteDelegate delegate) {
+        getCacheWriteExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                postResult(file, performWrite(file, task, false), delegate);
+            }
+        });
+    }
+
+    // Tells the delegate, on the main thread, how a write turned out.
+    private static void postResult(final File file, final int result, final WriteDelegate delegate) {
+        if (delegate == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (result == WRITE_COMPLETE) {
+                    delegate.onWriteComplete(file);
+                }
+                else if (result == WRITE_ABANDONED) {
+                    delegate.onWriteAbandoned(file);
+                }
+                else {
+                    delegate.onWriteFailed(file);
+                }
+            }
+        });
+    }
+
+    // Writes a file through a temporary file in the same directory, then renames it into place.  Runs on the calling thread.
+    public static void writeAtomically(File file, WriteTask task) throws IOException {
+        if (performWrite(file, task, syncWrites) == WRITE_FAILED) {
+            throw new IOException("Unable to write " + file.getPath());
+        }
+    }
+
     public static File getOutputJPGFile(Context context, String filename) {
+        return getOutputFile(context, filename, ".jpg");
+    }
+
+    public static File getOutputPNGFile(Context context, String filename) {
+        return getOutputFile(context, filename, ".png");
+    }
+
+    private static File getOutputFile(Context context, String filename, String extension) {
         if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
             Log.d("FileManager", "SD card not mounted");
         }
@@ -32,19 +168,183 @@ public class FileManager {
 
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
 
-        return new File(mediaStorageDir.getPath() + File.separator + filename + ".jpg");
+        return new File(mediaStorageDir.getPath() + File.separator + filename + extension);
+    }
+
+    // Saves a captured picture to internal storage, where it stays private to the app.  Any earlier capture is replaced.
+    public static File writeCaptureToCache(Context context, byte[] data) throws IOException {
+        File captureFile = new File(context.getCacheDir(), CAPTURE_FILE_NAME);
+        writeAtomically(captureFile, new ByteArrayWriteTask(data));
+        return captureFile;
+    }
+
+    // Picks a new directory to cache the tiles of a captured picture in, and deletes the tiles of earlier pictures.
+    // Each picture gets its own directory, so a tile still being written for an old picture can never be read back as part of a new one.
+    public static File createCaptureTileDirectory(Context context) {
+        return createFreshDirectory(new File(context.getCacheDir(), CAPTURE_TILE_DIRECTORY_NAME));
+    }
+
+    // Picks a new directory to spill undo checkpoints to, and deletes the checkpoints of earlier drawing sessions.
+    public static File createUndoCheckpointDirectory(Context context) {
+        return createFreshDirectory(new File(context.getCacheDir(), UNDO_CHECKPOINT_DIRECTORY_NAME));
+    }
+
+    // Deletes every directory within parent, along with their files, and returns a new, uncreated directory within it.
+    private static File createFreshDirectory(File parent) {
+        File[] oldDirectories = parent.listFiles();
+        if (oldDirectories != null) {
+            for (File directory : oldDirectories) {
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }
+        return new File(parent, String.valueOf(System.currentTimeMillis()));
     }
 
-    public static File writeImageDataToFile(Context context, String filename, byte[] data) {
+    // Queues JPEG data to be written to the pictures directory.  Returns the file it will be written to, or null if the write queue is full.
+    public static File writeImageDataToFile(Context context, String filename, byte[] data, WriteDelegate delegate) {
         File outFile = FileManager.getOutputJPGFile(context, filename);
-        try {
-            FileOutputStream fos = new FileOutputStream(outFile);
-            fos.write(data);
-            fos.close();
-        } catch (Exception e) {
-            Log.d("FileManager", "Unable to write picture data to file.");
+        if (!writeAsync(context, outFile, "image/jpeg", new ByteArrayWriteTask(data), delegate)) {
+            Log.d(TAG, "Too many pending writes to write " + outFile.getPath());
+            return null;
         }
-        MediaScannerConnection.scanFile(context, new String[]{outFile.getPath()}, new String[]{"image/jpeg"}, null);
         return outFile;
     }
+
+    // Writes a file through a temporary file and renames it into place.  The temporary file is deleted unless the write completes.
+    private static int performWrite(File file, WriteTask task, boolean sync) {
+        long startNanos = System.nanoTime();
+        File temporaryFile = new File(file.getPath() + TEMPORARY_SUFFIX);
+        int result = WRITE_FAILED;
+        long bytes = 0;
+        try {
+            FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+            CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(fileStream, WRITE_BUFFER_BYTES));
+            try {
+                if (task.writeTo(out)) {
+                    out.flush();
+                    if (sync) {
+                        fileStream.getFD().sync();
+                    }
+                    result = WRITE_COMPLETE;
+                }
+                else {
+                    result = WRITE_ABANDONED;
+                }
+                bytes = out.count;
+            }
+            finally {
+                out.close();
+            }
+
+            if ((result == WRITE_COMPLETE) && !temporaryFile.renameTo(file)) {
+                Log.d(TAG, "Unable to rename " + temporaryFile.getPath() + " to " + file.getName());
+                result = WRITE_FAILED;
+            }
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Unable to write " + file.getPath() + ": " + e.getMessage());
+            result = WRITE_FAILED;
+        }
+        catch (RuntimeException | OutOfMemoryError e) {
+            // A task that throws, such as an encoder misused or a region too large to decode, fails like any other write rather than killing the write thread.
+            Log.d(TAG, "Unable to write " + file.getPath() + ": " + e);
+            result = WRITE_FAILED;
+        }
+
+        if (result != WRITE_COMPLETE) {
+            temporaryFile.delete();
+            return result;
+        }
+        long nanos = System.nanoTime() - startNanos;
+        writeHistogram.record(nanos);
+        writtenBytesCounter.add(bytes);
+        if (bytes > 0) {
+            megabyteHistogram.record((long) (nanos * BYTES_PER_MEGABYTE / bytes));
+        }
+        return result;
+    }
+
+    // Scans every finished file at once.  Called on the write thread when the queue drains.
+    private static void flushScans(Context context) {
+        String[] paths, types;
+        synchronized (pendingScanPaths) {
+            if (pendingScanPaths.isEmpty()) {
+                return;
+            }
+            paths = pendingScanPaths.toArray(new String[pendingScanPaths.size()]);
+            types = pendingScanTypes.toArray(new String[pendingScanTypes.size()]);
+            pendingScanPaths.clear();
+            pendingScanTypes.clear();
+        }
+        MediaScannerConnection.scanFile(context, paths, types, null);
+    }
+
+    private static ThreadPoolExecutor getWriteExecutor() {
+        if (writeExecutor == null) {
+            writeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_WRITES), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "FileWriter");
+                }
+            });
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return writeExecutor;
+    }
+
+    private static ThreadPoolExecutor getCacheWriteExecutor() {
+        if (cacheWriteExecutor == null) {
+            cacheWriteExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CacheWriter");
+                    thread.setPriority(Thread.MIN_PRIORITY); // Cache data is written behind anything the user is waiting on.
+                    return thread;
+                }
+            });
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return cacheWriteExecutor;
+    }
+
+    private static class ByteArrayWriteTask implements WriteTask {
+        private final byte[] data;
+
+        ByteArrayWriteTask(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public boolean writeTo(OutputStream out) throws IOException {
+            out.write(data);
+            return true;
+        }
+    }
+
+    // Counts the bytes written through it, for throughput metrics.
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
 }
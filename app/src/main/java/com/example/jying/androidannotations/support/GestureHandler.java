@@ -6,7 +6,8 @@ import android.view.MotionEvent;
 
 import com.example.jying.androidannotations.AnnotationView;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by jying on 6/4/2015.
@@ -28,16 +29,36 @@ public abstract class GestureHandler {
     private int numMoveActions = 0;
 
     private final Handler longpressHandler = new Handler(); // Handles long presses
-    private Runnable longpressCallback; // The runnable that will call the longpress function once the timer is up.
-    private Point longpressPoint; // The original longpress point
-    private Point[] currentTouches = new Point[MAX_SUPPORTED_FINGERS];
-    private Point[] previousTouches = new Point[MAX_SUPPORTED_FINGERS];
+    private final Runnable longpressCallback; // The runnable that will call the longpress function once the timer is up.  Created once and reposted on every touch down.
+    private final Point longpressPoint = new Point(); // The original longpress point, in view coordinates
+    private final Point longpressTruePoint = new Point(); // Where the long press landed on the image.
+
+    // Touch state is kept in preallocated points that are overwritten on every event, so handling a move doesn't allocate.
+    private final Point[] currentTouches = new Point[MAX_SUPPORTED_FINGERS];
+    private final Point[] previousTouches = new Point[MAX_SUPPORTED_FINGERS];
+    private int currentTouchCount = 0; // How many entries of currentTouches are valid.
+    private int previousTouchCount = 0; // How many entries of previousTouches are valid.  0 when there is no previous move to compare against.
+    private final Point gesturePoint = new Point(); // Scratch true point passed to gestureStart and gestureFinish.
+    private final Point drawOrigin = new Point(); // Scratch true point where the previous move left off.
+    private Point[] drawPositions = new Point[0]; // The true positions of the samples in the current batched draw.  Grown as needed and reused between events.
+    private long[] drawTimes = new long[0]; // When each sample was taken, in SystemClock.uptimeMillis() time.
 
     protected int LONGPRESS_DURATION_MS = 500; // The number of milliseconds to wait for a long press
     protected Subview subview; // Represents the part of the canvas that the user is currently looking at.
 
-    public GestureHandler() {
+    private final Metrics.Histogram eventHistogram; // Time spent handling each touch event, tagged by the concrete handler.
 
+    public GestureHandler() {
+        eventHistogram = Metrics.getInstance().getHistogram(Metrics.GESTURE_EVENT, getClass().getSimpleName());
+        for (int fingerNum = 0; fingerNum < MAX_SUPPORTED_FINGERS; fingerNum++) {
+            currentTouches[fingerNum] = new Point();
+            previousTouches[fingerNum] = new Point();
+        }
+        longpressCallback = new Runnable() {
+            public void run() {
+                longPress(subview.getTruePoint(currentTouches[0], longpressTruePoint));
+            }
+        };
     }
 
     public void setSubview(Subview subview) {
@@ -45,34 +66,15 @@ public abstract class GestureHandler {
     }
 
     // This requires a view for vibration as well as invalidation for long presses, which are on a timer.
+    // The Points passed to the gesture callbacks are reused between events, so callbacks that keep a point must copy it.
     public void evaluateEvent(MotionEvent event, int maxX, int maxY) {
+        long startNanos = System.nanoTime();
         int pointerCount = event.getPointerCount(); // Record the number of fingers in the event.
 
-        // Save where the user is touching
-        for (int fingerNum = 0; fingerNum < MAX_SUPPORTED_FINGERS; fingerNum++) {
-            if (fingerNum < pointerCount) {
-                // Ensure that touch is within bounds:
-                int adjustedX = (int) event.getX(fingerNum);
-                int adjustedY = (int) event.getY(fingerNum);
-
-                if (adjustedX < 0) {
-                    adjustedX = 0;
-                }
-                else if (adjustedX > maxX) {
-                    adjustedX = maxX;
-                }
-
-                if (adjustedY < 0) {
-                    adjustedY = 0;
-                }
-                else if (adjustedY > maxY) {
-                    adjustedY = maxY;
-                }
-                currentTouches[fingerNum] = new Point(adjustedX, adjustedY);
-            }
-            else {
-                currentTouches[fingerNum] = null;
-            }
+        // Save where the user is touching, ensuring that each touch is within bounds.
+        currentTouchCount = Math.min(pointerCount, MAX_SUPPORTED_FINGERS);
+        for (int fingerNum = 0; fingerNum < currentTouchCount; fingerNum++) {
+            currentTouches[fingerNum].set(clamp((int) event.getX(fingerNum), maxX), clamp((int) event.getY(fingerNum), maxY));
         }
 
         // Handle the user's action
@@ -80,73 +82,74 @@ public abstract class GestureHandler {
             case MotionEvent.ACTION_DOWN:
                 numMoveActions = 0;
                 actionMaxFingers = pointerCount;
-                gestureStart(subview.getTruePoint(currentTouches[0]));
+                gestureStart(subview.getTruePoint(currentTouches[0], gesturePoint));
 
-                longpressPoint = currentTouches[0]; // Save the current point where the finger went down
+                longpressPoint.set(currentTouches[0].x, currentTouches[0].y); // Save the current point where the finger went down
                 // Start long press handler:
-                longpressHandler.postDelayed(longpressCallback = new Runnable() {
-                    public void run() {
-                        longpressPoint = subview.getTruePoint(currentTouches[0]);
-                        longPress(longpressPoint);
-                    }
-                }, LONGPRESS_DURATION_MS);
+                longpressHandler.removeCallbacks(longpressCallback);
+                longpressHandler.postDelayed(longpressCallback, LONGPRESS_DURATION_MS);
                 break;
             case MotionEvent.ACTION_MOVE:
                 numMoveActions++;
                 actionMaxFingers = Math.max(actionMaxFingers, pointerCount);
                 // If we're doing a two finger action and we have a previous two-finger action
-                if ((pointerCount == 2) && (previousTouches[1] != null)) {
+                if ((pointerCount == 2) && (previousTouchCount == 2)) {
                     longpressHandler.removeCallbacks(longpressCallback); // It's no longer a long press
                     if (numMoveActions < MAX_ACCIDENTAL_MOVES) {
                         unintendedDraw();
                     }
-                    float fingerDistanceChange = getTotalDistance(currentTouches) - getTotalDistance(previousTouches);
+                    float fingerDistanceChange = getDistance(currentTouches[0], currentTouches[1]) - getDistance(previousTouches[0], previousTouches[1]);
                     // If the user's action is drastic enough to be considered a zoom:
                     if (Math.abs(fingerDistanceChange) > AnnotationView.convertDpToPx(MINIMUM_ZOOM_DP)) {
                         gestureZoom(fingerDistanceChange);
                     }
                     // Panning is always on.
-                    Point centerNew = getPointsCenter(currentTouches);
-                    Point centerOld = getPointsCenter(previousTouches);
-                    int dx = centerOld.x - centerNew.x;
-                    int dy = centerOld.y - centerNew.y;
+                    int dx = (previousTouches[0].x + previousTouches[1].x) / 2 - (currentTouches[0].x + currentTouches[1].x) / 2;
+                    int dy = (previousTouches[0].y + previousTouches[1].y) / 2 - (currentTouches[0].y + currentTouches[1].y) / 2;
                     gesturePan(dx, dy);
                 }
                 else if (actionMaxFingers == 1) {
-                    float distanceTraveled = getTotalDistance(new Point[]{currentTouches[0], previousTouches[0]}); // The distance between this touch and the last touch in pixels
-                    // If the user's action is drastic enough to be considered a draw:
-                    if (distanceTraveled > AnnotationView.convertDpToPx(MINIMUM_DRAW_DP)) {
-                        int dx = 0;
-                        int dy = 0;
-                        if (previousTouches != null) {
-                            Point currentTruePoint = subview.getTruePoint(currentTouches[0]);
-                            Point lastTruePoint = subview.getTruePoint(previousTouches[0]);
-                            dx = currentTruePoint.x - lastTruePoint.x;
-                            dy = currentTruePoint.y - lastTruePoint.y;
-                        }
-                        gestureDraw(subview.getTruePoint(currentTouches[0]), dx, dy, numMoveActions < MAX_ACCIDENTAL_MOVES);
+                    // If there was a previous touch and the user's action is drastic enough to be considered a draw:
+                    if ((previousTouchCount > 0) && (getDistance(currentTouches[0], previousTouches[0]) > AnnotationView.convertDpToPx(MINIMUM_DRAW_DP))) {
+                        int count = collectDrawSamples(event, maxX, maxY);
+                        gestureDrawBatch(subview.getTruePoint(previousTouches[0], drawOrigin), drawPositions, drawTimes, count, numMoveActions < MAX_ACCIDENTAL_MOVES);
                     }
                     // If the user's finger has moved too far from its original position for it to be considered a long press:
-                    if (getTotalDistance(new Point[]{longpressPoint, currentTouches[0]}) > AnnotationView.convertDpToPx(LONGPRESS_DISTANCE_DP)) {
+                    if (getDistance(longpressPoint, currentTouches[0]) > AnnotationView.convertDpToPx(LONGPRESS_DISTANCE_DP)) {
                         longpressHandler.removeCallbacks(longpressCallback);
                     }
                 }
-                // Save the last coordinates.c
-                previousTouches = currentTouches.clone();
+                // Save the last coordinates.
+                for (int fingerNum = 0; fingerNum < currentTouchCount; fingerNum++) {
+                    previousTouches[fingerNum].set(currentTouches[fingerNum].x, currentTouches[fingerNum].y);
+                }
+                previousTouchCount = currentTouchCount;
                 break;
             case MotionEvent.ACTION_UP:
                 longpressHandler.removeCallbacks(longpressCallback);
-                gestureFinish(subview.getTruePoint(currentTouches[0]), actionMaxFingers);
-                previousTouches = new Point[MAX_SUPPORTED_FINGERS]; // Clear previous touches
+                gestureFinish(subview.getTruePoint(currentTouches[0], gesturePoint), actionMaxFingers);
+                previousTouchCount = 0; // Clear previous touches
                 break;
         }
+        eventHistogram.recordSince(startNanos);
     }
 
     // Called when the user starts a gesture.
     protected abstract void gestureStart(Point position);
 
-    // Called when the user is performing a one-finger drawing gesture (moving one finger on the screen)
-    protected abstract void gestureDraw(Point position, int dx, int dy, boolean possiblyAccidental);
+    // Called when the user is performing a one-finger drawing gesture (moving one finger on the screen).  eventTime is the sample's uptime, in milliseconds.
+    protected abstract void gestureDraw(Point position, int dx, int dy, long eventTime, boolean possiblyAccidental);
+
+    // Called with every sample of a one-finger draw since the last event, oldest first, so overlays can add them all and update the raster once.
+    // origin is where the previous event left off.  Only the first count entries of the arrays are valid, and the arrays and points are reused after this returns.
+    // By default, each sample is passed to gestureDraw in turn.
+    protected void gestureDrawBatch(Point origin, Point[] positions, long[] eventTimes, int count, boolean possiblyAccidental) {
+        Point previous = origin;
+        for (int index = 0; index < count; index++) {
+            gestureDraw(positions[index], positions[index].x - previous.x, positions[index].y - previous.y, eventTimes[index], possiblyAccidental);
+            previous = positions[index];
+        }
+    }
 
     // Called when the user has started a one-finger draw but has transitioned to a two-finger gesture within a specified draw distance
     protected abstract void unintendedDraw();
@@ -167,9 +170,59 @@ public abstract class GestureHandler {
         subview.adjustViewZoom(dA);
     }
 
+    // Gathers the historical samples Android batched into a move event, followed by its current position, into drawPositions and drawTimes.
+    // Historical samples closer than MINIMUM_DRAW_DP to the last kept sample are skipped.  The current position is always kept.  Returns the number of samples.
+    private int collectDrawSamples(MotionEvent event, int maxX, int maxY) {
+        int historySize = event.getHistorySize();
+        if (drawPositions.length < historySize + 1) {
+            // Only happens when a move carries more history than any before it.
+            Point[] grown = Arrays.copyOf(drawPositions, historySize + 1);
+            for (int index = drawPositions.length; index < grown.length; index++) {
+                grown[index] = new Point();
+            }
+            drawPositions = grown;
+            drawTimes = new long[historySize + 1];
+        }
+
+        int minimumDistance = AnnotationView.convertDpToPx(MINIMUM_DRAW_DP);
+        int lastX = previousTouches[0].x;
+        int lastY = previousTouches[0].y;
+        int count = 0;
+        for (int sample = 0; sample < historySize; sample++) {
+            int touchX = clamp((int) event.getHistoricalX(0, sample), maxX);
+            int touchY = clamp((int) event.getHistoricalY(0, sample), maxY);
+            if (getDistance(touchX, touchY, lastX, lastY) > minimumDistance) {
+                drawPositions[count].set(subview.getTrueX(touchX), subview.getTrueY(touchY));
+                drawTimes[count] = event.getHistoricalEventTime(sample);
+                count++;
+                lastX = touchX;
+                lastY = touchY;
+            }
+        }
+        subview.getTruePoint(currentTouches[0], drawPositions[count]);
+        drawTimes[count] = event.getEventTime();
+        return count + 1;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(0, Math.min(max, value));
+    }
+
     public static float getDistanceTo(Point a, Point b) {
-        Point[] points = {a, b};
-        return getTotalDistance(points);
+        if ((a == null) || (b == null)) {
+            return 0;
+        }
+        return getDistance(a, b);
+    }
+
+    private static float getDistance(Point a, Point b) {
+        return getDistance(a.x, a.y, b.x, b.y);
+    }
+
+    public static float getDistance(int x1, int y1, int x2, int y2) {
+        int dx = x1 - x2;
+        int dy = y1 - y2;
+        return (float) Math.sqrt(dx * dx + dy * dy);
     }
 
     // Gets the total distance between each of the points in the array in order.  Does not wrap around.  Distance is 0 if elements are null.
@@ -180,16 +233,18 @@ public abstract class GestureHandler {
                 totalDistance += 0;
             }
             else {
-                int dx = points[index].x - points[index + 1].x;
-                int dy = points[index].y - points[index + 1].y;
-                totalDistance += Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
+                totalDistance += getDistance(points[index], points[index + 1]);
             }
         }
         return totalDistance;
     }
 
-    public static float getTotalDistance(ArrayList<Point> points) {
-        return getTotalDistance(points.toArray(new Point[points.size()]));
+    public static float getTotalDistance(List<Point> points) {
+        float totalDistance = 0;
+        for (int index = 0; index < (points.size() - 1); index++) {
+            totalDistance += getDistanceTo(points.get(index), points.get(index + 1));
+        }
+        return totalDistance;
     }
 
     // Returns the center of all the points.
@@ -0,0 +1,159 @@
+package com.example.jying.androidannotations.support;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Picture;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the background and every backing canvas's annotations to a PNG at the background's native resolution.
+ * The image is composited one horizontal strip at a time on FileManager's write thread and streamed into the encoder, so only a strip is ever in memory.
+ * Annotations are recorded on the main thread when the export starts, so they can keep being edited while it runs.
+ */
+public class ImageExporter implements WriteTask, WriteDelegate {
+
+    private static final String TAG = "ImageExporter";
+    private static final int STRIP_HEIGHT = 256; // Rows composited and encoded at a time.
+
+    private final Context context;
+    private final Bitmap background; // The background at the size annotations are laid out on.
+    private final TiledImageSource fullSource; // The full resolution background, or null to export at the background bitmap's size.
+    private List<BackingCanvas> canvases; // Only needed until the annotations are recorded, so they aren't held for the whole export.
+    private final String filename;
+    private final ExportDelegate delegate;
+    private final Handler mainHandler;
+    private volatile boolean cancelled;
+    private int width, height; // The size of the exported image.
+    private ArrayList<Picture> annotations; // One recording per backing canvas, at the exported size.
+
+    public ImageExporter(Context context, Bitmap background, TiledImageSource fullSource, List<BackingCanvas> canvases, String filename, ExportDelegate delegate) {
+        this.context = context;
+        this.background = background;
+        this.fullSource = fullSource;
+        this.canvases = canvases;
+        this.filename = filename;
+        this.delegate = delegate;
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    // Records the annotations and queues the export.  Must be called on the main thread.
+    // Returns false without exporting anything if FileManager's write queue is full.
+    public boolean start() {
+        width = (fullSource == null) ? background.getWidth() : fullSource.getWidth();
+        height = (fullSource == null) ? background.getHeight() : fullSource.getHeight();
+        float ratio = (float) width / background.getWidth();
+        annotations = new ArrayList<Picture>();
+        for (BackingCanvas canvas : canvases) {
+            annotations.add(canvas.recordAnnotations(ratio));
+        }
+        canvases = null;
+        return FileManager.writeAsync(context, FileManager.getOutputPNGFile(context, filename), "image/png", this, this);
+    }
+
+    // Stops the export after the current strip.  Nothing is left at the destination.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    @Override
+    public void onWriteComplete(File file) {
+        delegate.onExportComplete(file);
+    }
+
+    @Override
+    public void onWriteAbandoned(File file) {
+        delegate.onExportCancelled();
+    }
+
+    @Override
+    public void onWriteFailed(File file) {
+        Log.d(TAG, "Unable to export to " + file.getPath());
+        delegate.onExportFailed();
+    }
+
+    // Composites and encodes every strip.  Returns false if cancelled.  Called on the write thread.
+    @Override
+    public boolean writeTo(OutputStream out) throws IOException {
+        BitmapRegionDecoder decoder = (fullSource == null) ? null : BitmapRegionDecoder.newInstance(fullSource.getImageFile().getPath(), false); // Separate from the source's own decoder, which belongs to its thread.
+        Bitmap strip = BitmapPool.getInstance().acquire(width, Math.min(STRIP_HEIGHT, height), Bitmap.Config.ARGB_8888);
+        Canvas stripCanvas = new Canvas(strip);
+        Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        int[] pixels = new int[width * strip.getHeight()];
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        PngWriter writer = null;
+        try {
+            writer = new PngWriter(out, width, height);
+            for (int top = 0; top < height; top += strip.getHeight()) {
+                if (cancelled) {
+                    writer.abort();
+                    return false;
+                }
+                int rows = Math.min(strip.getHeight(), height - top);
+                Rect stripRect = new Rect(0, top, width, top + rows);
+
+                // Background
+                if (decoder != null) {
+                    Bitmap region = decoder.decodeRegion(stripRect, options);
+                    stripCanvas.drawBitmap(region, 0, 0, null);
+                    region.recycle();
+                }
+                else {
+                    stripCanvas.drawBitmap(background, stripRect, new Rect(0, 0, width, rows), filterPaint);
+                }
+
+                // Annotations, in canvas order.  Each canvas gets its own transparent layer, as on screen, so erased strokes only clear that canvas's annotations.
+                for (Picture picture : annotations) {
+                    stripCanvas.saveLayer(0, 0, width, rows, null, Canvas.ALL_SAVE_FLAG);
+                    stripCanvas.translate(0, -top);
+                    stripCanvas.drawPicture(picture);
+                    stripCanvas.restore(); // Composites the layer over the background and earlier canvases.
+                }
+
+                strip.getPixels(pixels, 0, width, 0, 0, width, rows);
+                writer.writeRows(pixels, rows);
+                postProgress((float) (top + rows) / height);
+            }
+            writer.finish();
+            return true;
+        }
+        catch (IOException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            throw e;
+        }
+        finally {
+            BitmapPool.getInstance().release(strip);
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    private void postProgress(final float fraction) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!cancelled) {
+                    delegate.onExportProgress(fraction);
+                }
+            }
+        });
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+
+/**
+ * An annotation that grows over time and can draw just the part added since it was last drawn.
+ */
+public interface IncrementalAnnotation extends Annotation {
+    // Draws only what was added since the last call, falling back to a full draw if the canvas size has changed.
+    void drawIncrementOnCanvas(Canvas canvas, float resizeRatio);
+
+    // Returns the area that the next drawIncrementOnCanvas call will touch, in background image pixels.
+    Rect getIncrementBounds(int bgWidth, int bgHeight, float resizeRatio);
+}
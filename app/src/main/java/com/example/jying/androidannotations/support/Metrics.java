@@ -0,0 +1,273 @@
+package com.example.jying.androidannotations.support;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A process-wide registry of latency histograms and counters, used to see where drawing and input time goes.
+ * Entries are identified by a name (what was measured) and a tag (which overlay or canvas it was measured on).
+ * Look entries up once and keep them, since recording into them doesn't allocate.  Recording does nothing while metrics are disabled.
+ */
+public class Metrics {
+
+    // Entry names
+    public static final String VIEW_DRAW = "AnnotationView.onDraw";
+    public static final String CANVAS_BLIT = "BackingCanvas.drawOnCanvas";
+    public static final String CANVAS_REDRAW_ALL = "BackingCanvas.redrawAll";
+    public static final String CANVAS_RENDER_FRAME = "BackingCanvas.renderFrame";
+    public static final String CANVAS_REDRAW_DAMAGED = "BackingCanvas.redrawDamaged";
+    public static final String CANVAS_QUICKDRAW = "BackingCanvas.quickdrawAnnotation";
+    public static final String CANVAS_REDRAWN_PIXELS = "BackingCanvas.redrawnPixels";
+    public static final String CANVAS_REDRAWN_ANNOTATIONS = "BackingCanvas.redrawnAnnotations";
+    public static final String CANVAS_DROPPED_FRAMES = "BackingCanvas.droppedFrames";
+    public static final String GESTURE_EVENT = "GestureHandler.evaluateEvent";
+    public static final String STROKE_POINTS_BEFORE = "DrawingOverlay.pointsBeforeSimplify";
+    public static final String STROKE_POINTS_AFTER = "DrawingOverlay.pointsAfterSimplify";
+    public static final String DRAWING_UNDO = "DrawingOverlay.undo";
+    public static final String DRAWING_REDO = "DrawingOverlay.redo";
+    public static final String INK_LATENCY = "DrawingOverlay.inkLatency";
+    public static final String CHECKPOINT_REPLAYED_STROKES = "StrokeCheckpoints.replayedStrokes";
+    public static final String CHECKPOINT_RESTORES = "StrokeCheckpoints.restores";
+    public static final String CHECKPOINT_SPILLS = "StrokeCheckpoints.spills";
+    public static final String EDGE_DETECTOR_PREFIX = "EdgeDetector.";
+    public static final String FILE_WRITE = "FileManager.write";
+    public static final String FILE_QUEUE_WAIT = "FileManager.queueWait";
+    public static final String FILE_WRITE_PER_MEGABYTE = "FileManager.writePerMegabyte";
+    public static final String FILE_WRITTEN_BYTES = "FileManager.writtenBytes";
+    public static final String FILE_REJECTED_WRITES = "FileManager.rejectedWrites";
+
+    private static final double NANOS_PER_MILLI = 1000 * 1000;
+
+    private static Metrics instance;
+
+    private volatile boolean enabled;
+    private final TreeMap<String, Histogram> histograms; // Keyed by name and tag, so dumps come out in a stable order.
+    private final TreeMap<String, Counter> counters;
+
+    public static synchronized Metrics getInstance() {
+        if (instance == null) {
+            instance = new Metrics();
+        }
+        return instance;
+    }
+
+    private Metrics() {
+        histograms = new TreeMap<String, Histogram>();
+        counters = new TreeMap<String, Counter>();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // A tag for something measured on a canvas on behalf of an overlay.
+    public static String getTag(Overlay overlay, BackingCanvas canvas) {
+        return overlay.getClass().getSimpleName() + "@" + canvas.getMetricsTag();
+    }
+
+    public synchronized Histogram getHistogram(String name, String tag) {
+        String key = getKey(name, tag);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram(this, name, tag);
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized Counter getCounter(String name, String tag) {
+        String key = getKey(name, tag);
+        Counter counter = counters.get(key);
+        if (counter == null) {
+            counter = new Counter(this, name, tag);
+            counters.put(key, counter);
+        }
+        return counter;
+    }
+
+    // Clears every recorded value.  Entries stay registered, so references to them remain valid.
+    public synchronized void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+    }
+
+    // One human-readable line per entry that has recorded anything.  Used by the on-screen HUD.
+    public synchronized List<String> getSummaryLines() {
+        ArrayList<String> lines = new ArrayList<String>();
+        for (Histogram histogram : histograms.values()) {
+            if (histogram.getCount() > 0) {
+                lines.add(String.format(Locale.US, "%s %s n=%d p50=%.1fms p99=%.1fms max=%.1fms", histogram.name, histogram.tag, histogram.getCount(),
+                        histogram.getPercentile(.5) / NANOS_PER_MILLI, histogram.getPercentile(.99) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI));
+            }
+        }
+        for (Counter counter : counters.values()) {
+            if (counter.get() != 0) {
+                lines.add(String.format(Locale.US, "%s %s %d", counter.name, counter.tag, counter.get()));
+            }
+        }
+        return lines;
+    }
+
+    // Writes every entry to a tab-separated file, overwriting it.  Runs can be compared by diffing the files.
+    public synchronized void dump(File file) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("name\ttag\tcount\tmean_ms\tp50_ms\tp90_ms\tp99_ms\tmax_ms\n");
+            for (Histogram histogram : histograms.values()) {
+                writer.write(String.format(Locale.US, "%s\t%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\n", histogram.name, histogram.tag, histogram.getCount(),
+                        histogram.getMean() / NANOS_PER_MILLI, histogram.getPercentile(.5) / NANOS_PER_MILLI, histogram.getPercentile(.9) / NANOS_PER_MILLI,
+                        histogram.getPercentile(.99) / NANOS_PER_MILLI, histogram.getMax() / NANOS_PER_MILLI));
+            }
+            for (Counter counter : counters.values()) {
+                writer.write(String.format(Locale.US, "%s\t%s\t%d\t\t\t\t\t\n", counter.name, counter.tag, counter.get()));
+            }
+        }
+        finally {
+            writer.close();
+        }
+    }
+
+    private static String getKey(String name, String tag) {
+        return name + "\t" + tag;
+    }
+
+    /**
+     * Latencies in nanoseconds, bucketed logarithmically with four buckets per power of two, so percentiles are accurate to within about 12%.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+        private static final int SUB_BUCKET_BITS = 2;
+
+        private final Metrics owner;
+        private final String name, tag;
+        private final long[] buckets = new long[64 * SUB_BUCKETS];
+        private long count, sum, max;
+
+        private Histogram(Metrics owner, String name, String tag) {
+            this.owner = owner;
+            this.name = name;
+            this.tag = tag;
+        }
+
+        // Records the time since a System.nanoTime() reading.
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public synchronized void record(long nanos) {
+            if (!owner.enabled) {
+                return;
+            }
+            nanos = Math.max(0, nanos);
+            buckets[getBucket(nanos)]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getMean() {
+            return (count == 0) ? 0 : (double) sum / count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        // The latency (in nanoseconds) that the given fraction of recordings were at or under.
+        public synchronized long getPercentile(double fraction) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= target) {
+                    return Math.min(max, getBucketUpperBound(bucket));
+                }
+            }
+            return max;
+        }
+
+        synchronized void reset() {
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                buckets[bucket] = 0;
+            }
+            count = 0;
+            sum = 0;
+            max = 0;
+        }
+
+        // Values below SUB_BUCKETS get their own buckets.  Above that, the position of the top bit picks the power of two and the next bits pick the sub-bucket.
+        private static int getBucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int topBit = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) ((value >> (topBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+            return (topBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long getBucketUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int topBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long width = 1L << (topBit - SUB_BUCKET_BITS);
+            long lowerBound = (SUB_BUCKETS + (bucket % SUB_BUCKETS)) * width;
+            return lowerBound + width - 1;
+        }
+    }
+
+    /**
+     * A running total, such as a number of pixels redrawn.
+     */
+    public static class Counter {
+        private final Metrics owner;
+        private final String name, tag;
+        private long value;
+
+        private Counter(Metrics owner, String name, String tag) {
+            this.owner = owner;
+            this.name = name;
+            this.tag = tag;
+        }
+
+        public synchronized void add(long amount) {
+            if (owner.enabled) {
+                value += amount;
+            }
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public synchronized long get() {
+            return value;
+        }
+
+        synchronized void reset() {
+            value = 0;
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.ArrayList;
+
+/**
+ * A bitmap along with copies of it at half, quarter, eighth (and so on) size, used to draw it zoomed out without sampling the full bitmap every frame.
+ * The smaller copies are built on a background thread shared by every chain, one chain at a time.  Until they're ready, the full bitmap is used at every magnification.
+ */
+public class MipmapChain {
+
+    private static final int MIN_LEVEL_SIZE = 64; // Stop halving once either dimension would go below this.
+
+    private static HandlerThread buildThread; // Started on first use.
+    private static Handler buildHandler;
+
+    private final Bitmap base;
+    private ArrayList<Bitmap> levels; // levels.get(0) is the base bitmap.  Main thread only.
+    private boolean building;
+    private volatile boolean released; // Read by the build thread, so a build for a chain that's been replaced stops early.
+    private Runnable buildTask; // The queued or running build, or null.  Main thread only.
+
+    public MipmapChain(Bitmap base) {
+        this.base = base;
+        levels = new ArrayList<Bitmap>();
+        levels.add(base);
+    }
+
+    public Bitmap getBase() {
+        return base;
+    }
+
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    // Builds the smaller levels on a background thread.  onBuilt runs on the main thread once they can be drawn, and may be null.
+    public void buildAsync(final Runnable onBuilt) {
+        if (building || released || (levels.size() > 1)) {
+            return;
+        }
+        building = true;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        buildTask = new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<Bitmap> built = buildLevels();
+                if (built == null) {
+                    return; // Released while building.
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        building = false;
+                        buildTask = null;
+                        if (released) {
+                            for (int index = 1; index < built.size(); index++) {
+                                BitmapPool.getInstance().release(built.get(index));
+                            }
+                            return;
+                        }
+                        levels = built;
+                        if (onBuilt != null) {
+                            onBuilt.run();
+                        }
+                    }
+                });
+            }
+        };
+        getBuildHandler().post(buildTask);
+    }
+
+    // Gets the smallest level that still has at least one pixel per screen pixel at the given magnification (screen pixels per base pixel).
+    public Bitmap getLevel(float magnification) {
+        int level = 0;
+        while ((level < levels.size() - 1) && (magnification * (1 << (level + 1)) <= 1)) {
+            level++;
+        }
+        return levels.get(level);
+    }
+
+    // Converts a rectangle on the base bitmap to the same area on one of its levels.
+    public void toLevelRect(Bitmap level, Rect baseRect, Rect out) {
+        if (level == base) {
+            out.set(baseRect);
+            return;
+        }
+        float scaleX = (float) level.getWidth() / base.getWidth();
+        float scaleY = (float) level.getHeight() / base.getHeight();
+        out.set((int) (baseRect.left * scaleX), (int) (baseRect.top * scaleY), (int) Math.ceil(baseRect.right * scaleX), (int) Math.ceil(baseRect.bottom * scaleY));
+    }
+
+    // Returns every level except the base to the bitmap pool.  The chain only draws the base bitmap afterwards.
+    public void release() {
+        released = true;
+        if (buildTask != null) {
+            getBuildHandler().removeCallbacks(buildTask); // A build that hasn't started yet never will.  One in progress stops at its next level.
+            buildTask = null;
+        }
+        for (int index = 1; index < levels.size(); index++) {
+            BitmapPool.getInstance().release(levels.get(index));
+        }
+        levels = new ArrayList<Bitmap>();
+        levels.add(base);
+    }
+
+    // Halves the previous level with bilinear filtering, which averages each 2x2 block, until the minimum size is reached.
+    // Returns null, with every level already returned to the pool, if the chain is released part way.
+    private ArrayList<Bitmap> buildLevels() {
+        ArrayList<Bitmap> built = new ArrayList<Bitmap>();
+        built.add(base);
+        Paint filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Bitmap previous = base;
+        while ((previous.getWidth() / 2 >= MIN_LEVEL_SIZE) && (previous.getHeight() / 2 >= MIN_LEVEL_SIZE)) {
+            if (released) {
+                for (int index = 1; index < built.size(); index++) {
+                    BitmapPool.getInstance().release(built.get(index));
+                }
+                return null;
+            }
+            Bitmap level = BitmapPool.getInstance().acquire(previous.getWidth() / 2, previous.getHeight() / 2, Bitmap.Config.ARGB_8888);
+            new Canvas(level).drawBitmap(previous, null, new Rect(0, 0, level.getWidth(), level.getHeight()), filterPaint);
+            built.add(level);
+            previous = level;
+        }
+        return built;
+    }
+
+    private static synchronized Handler getBuildHandler() {
+        if (buildThread == null) {
+            buildThread = new HandlerThread("MipmapBuilder");
+            buildThread.start();
+            buildHandler = new Handler(buildThread.getLooper());
+        }
+        return buildHandler;
+    }
+
+}
@@ -1,5 +1,9 @@
 package com.example.jying.androidannotations.support;
 
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.os.Bundle;
 
 import java.util.ArrayList;
@@ -14,6 +18,12 @@ public abstract class Overlay extends GestureHandler {
     protected List<List<Annotation>> annotationSets;
     protected boolean requiresTransparency = false; // By default, assume that layers don't need transparency unless specifically stated.
     protected boolean requiresViewInflation = false; // By default, assume that layers don't need the view to be inflated (view dimensions) unless specifically stated.
+    protected boolean recordsDisplayList = true; // By default, annotations look the same at every resolution and can be replayed from a recording.  Overlays that draw relative to the view should turn this off.
+
+    private Picture displayList; // The annotations recorded at the original image size.  Null whenever the annotations have changed since they were recorded.
+    private SpatialIndex<Annotation> spatialIndex; // The bounds of every annotation, in original image pixels.  Rebuilt from annotationSets when stale.
+    private float spatialIndexRatio; // The resize ratio that the indexed bounds were measured at.  Stroke and handle sizes depend on it.
+    private boolean spatialIndexStale = true;
 
     public Overlay() {
         super();
@@ -28,7 +38,7 @@ public abstract class Overlay extends GestureHandler {
             newBackingCanvas.addAnnotationSet(this);
         }
         this.backingCanvas = newBackingCanvas;
-        this.backingCanvas.redrawAll();
+        this.backingCanvas.redrawAll(this);
     }
 
     public boolean isViewInflationRequired() {
@@ -43,14 +53,136 @@ public abstract class Overlay extends GestureHandler {
         return requiresTransparency;
     }
 
+    // Gets a resolution-independent recording of every annotation, drawn at the original image size.  Returns null if this overlay can't be recorded.
+    public Picture getDisplayList(int bgWidth, int bgHeight) {
+        if (!recordsDisplayList) {
+            return null;
+        }
+        if (displayList == null) {
+            Picture picture = new Picture();
+            Canvas recordingCanvas = picture.beginRecording(bgWidth, bgHeight);
+            for (List<Annotation> annotations : annotationSets) {
+                for (Annotation annotation : annotations) {
+                    // Drawing at ratio 1 would rebuild resolution-dependent caches at the original size, only for the next draw to rebuild them again.
+                    if (annotation instanceof RecordableAnnotation) {
+                        ((RecordableAnnotation) annotation).recordOnCanvas(recordingCanvas, bgWidth, bgHeight);
+                    }
+                    else {
+                        annotation.drawOnCanvas(recordingCanvas, 1);
+                    }
+                }
+            }
+            picture.endRecording();
+            displayList = picture; // Only publish the recording once it's complete.
+        }
+        return displayList;
+    }
+
+    // Discards the recorded display list.  It will be recorded again the next time it's needed.
+    public void invalidateDisplayList() {
+        displayList = null;
+    }
+
+    // Gets an index of every annotation's bounds, rebuilding it if annotations were changed without being invalidated.  Returns null without a backing canvas.
+    public SpatialIndex<Annotation> getSpatialIndex() {
+        if (backingCanvas == null) {
+            return null;
+        }
+        int width = backingCanvas.getOriginalWidth();
+        int height = backingCanvas.getOriginalHeight();
+        float ratio = backingCanvas.getResizeRatio();
+        if (spatialIndexStale || (spatialIndex == null) || (spatialIndex.getWidth() != width) || (spatialIndex.getHeight() != height) || (spatialIndexRatio != ratio)) {
+            spatialIndex = new SpatialIndex<Annotation>(width, height);
+            for (List<Annotation> annotations : annotationSets) {
+                for (Annotation annotation : annotations) {
+                    spatialIndex.put(annotation, annotation.getBounds(width, height, ratio));
+                }
+            }
+            spatialIndexRatio = ratio;
+            spatialIndexStale = false;
+        }
+        return spatialIndex;
+    }
+
+    // Marks the spatial index as out of date.  It will be rebuilt the next time it's needed.
+    public void invalidateSpatialIndex() {
+        spatialIndexStale = true;
+    }
+
     public BackingCanvas getBackingCanvas() {
         return backingCanvas;
     }
 
     public void clearAnnotations() {
-        backingCanvas.redrawAll();
+        backingCanvas.redrawAll(this);
     }
 
+    // Marks the area covered by an annotation as damaged.  Call this before and after the annotation changes, then call redrawDamaged.
+    // The annotation is also re-indexed at its current bounds, so callers don't need to keep the spatial index in sync themselves.
+    protected void invalidateAnnotation(Annotation annotation) {
+        if ((backingCanvas != null) && (annotation != null)) {
+            Rect bounds = annotation.getBounds(backingCanvas.getOriginalWidth(), backingCanvas.getOriginalHeight(), backingCanvas.getResizeRatio());
+            backingCanvas.invalidateRegion(bounds, this);
+            indexAnnotation(annotation, bounds);
+        }
+    }
+
+    // Records an annotation's current bounds in the spatial index.  Only needed for annotations that change without being invalidated.
+    protected void indexAnnotation(Annotation annotation) {
+        if ((backingCanvas != null) && (annotation != null)) {
+            indexAnnotation(annotation, annotation.getBounds(backingCanvas.getOriginalWidth(), backingCanvas.getOriginalHeight(), backingCanvas.getResizeRatio()));
+        }
+    }
+
+    // Records an annotation's current bounds (in original image pixels) in the spatial index, unless the index is going to be rebuilt anyway.
+    // Queries return annotations in the order they were first indexed, so one that isn't drawn last, such as a line added under contours, has the index rebuilt in draw order instead.
+    void indexAnnotation(Annotation annotation, Rect bounds) {
+        if ((spatialIndex != null) && !spatialIndexStale) {
+            if (!spatialIndex.contains(annotation) && !isDrawnLast(annotation)) {
+                spatialIndexStale = true;
+                return;
+            }
+            spatialIndex.put(annotation, bounds);
+        }
+    }
+
+    // Whether an annotation is the last one drawn, on top of every other.
+    private boolean isDrawnLast(Annotation annotation) {
+        for (int index = annotationSets.size() - 1; index >= 0; index--) {
+            List<Annotation> annotations = annotationSets.get(index);
+            if (!annotations.isEmpty()) {
+                return annotations.get(annotations.size() - 1) == annotation;
+            }
+        }
+        return false;
+    }
+
+    // Removes an annotation from the spatial index.  Call this after removing an annotation from its list.
+    protected void unindexAnnotation(Annotation annotation) {
+        if ((spatialIndex != null) && (annotation != null)) {
+            spatialIndex.remove(annotation);
+        }
+    }
+
+    // Gets the annotations whose bounds come within a distance of a point, in the order they were added.  The point and distance are in original image pixels.
+    protected List<Annotation> getAnnotationsNear(Point position, int distance) {
+        SpatialIndex<Annotation> index = getSpatialIndex();
+        if (index == null) {
+            return new ArrayList<Annotation>();
+        }
+        return index.queryNear(position.x, position.y, distance);
+    }
+
+    // Redraws only the parts of the backing canvas that were invalidated since the last redraw.
+    protected void redrawDamaged() {
+        if (backingCanvas != null) {
+            backingCanvas.redrawDamaged();
+        }
+    }
+
+    // Draws anything that's still being made straight onto the view, over this overlay's backing canvas.  Called on every frame, after the backing canvas is drawn.
+    public void drawWetInk(Canvas canvas, Subview subview) {}
+
     public abstract void onLayerActivationChanged(boolean active);
 
     public abstract void saveToBundle(Bundle bundle, String key);
@@ -0,0 +1,126 @@
+package com.example.jying.androidannotations.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes an opaque 8-bit RGB PNG a few rows at a time, so an image can be written without ever being in memory as a whole.
+ * Rows are filtered with the Sub filter and compressed straight into IDAT chunks as they arrive.
+ */
+public class PngWriter {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final byte FILTER_SUB = 1; // Each byte is stored as its difference from the same channel of the pixel to its left.
+    private static final int CHUNK_BUFFER_BYTES = 64 * 1024; // The largest IDAT chunk written.
+
+    private final OutputStream out;
+    private final int width, height;
+    private final Deflater deflater;
+    private final CRC32 crc;
+    private final byte[] rowBytes; // The filter type byte followed by the filtered row.
+    private final byte[] chunkBuffer;
+    private int rowsWritten;
+
+    // Writes the PNG header straight away.  The stream isn't closed by the writer.
+    public PngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        crc = new CRC32();
+        rowBytes = new byte[1 + width * BYTES_PER_PIXEL];
+        chunkBuffer = new byte[CHUNK_BUFFER_BYTES];
+
+        out.write(SIGNATURE);
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8; // Bit depth
+        header[9] = 2; // Color type: RGB
+        header[10] = 0; // Compression: deflate
+        header[11] = 0; // Filter method: adaptive
+        header[12] = 0; // Interlace: none
+        writeChunk("IHDR", header, header.length);
+    }
+
+    public int getRowsWritten() {
+        return rowsWritten;
+    }
+
+    // Writes rows of ARGB pixels, as returned by Bitmap.getPixels with a stride of the image width.  Alpha is dropped.
+    public void writeRows(int[] pixels, int rowCount) throws IOException {
+        if (rowsWritten + rowCount > height) {
+            throw new IllegalStateException("More rows written than the image has.");
+        }
+        for (int row = 0; row < rowCount; row++) {
+            rowBytes[0] = FILTER_SUB;
+            int previous = 0;
+            int rowStart = row * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[rowStart + x];
+                int offset = 1 + x * BYTES_PER_PIXEL;
+                rowBytes[offset] = (byte) ((pixel >> 16) - (previous >> 16));
+                rowBytes[offset + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+                rowBytes[offset + 2] = (byte) (pixel - previous);
+                previous = pixel;
+            }
+            deflater.setInput(rowBytes);
+            while (!deflater.needsInput()) {
+                writeCompressed();
+            }
+        }
+        rowsWritten += rowCount;
+    }
+
+    // Flushes the compressed data and writes the end of the image.  Every row must have been written.
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written.");
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            writeCompressed();
+        }
+        deflater.end();
+        writeChunk("IEND", chunkBuffer, 0);
+    }
+
+    // Frees the compressor without finishing the image, such as when an export is cancelled.
+    public void abort() {
+        deflater.end();
+    }
+
+    private void writeCompressed() throws IOException {
+        int length = deflater.deflate(chunkBuffer);
+        if (length > 0) {
+            writeChunk("IDAT", chunkBuffer, length);
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        byte[] lengthBytes = new byte[4];
+        putInt(lengthBytes, 0, length);
+        out.write(lengthBytes);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        byte[] crcBytes = new byte[4];
+        putInt(crcBytes, 0, (int) crc.getValue());
+        out.write(crcBytes);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Canvas;
+
+/**
+ * An annotation that keeps resolution-dependent state, such as a native path built at the canvas size, and can record itself into a display list
+ * without disturbing that state.
+ */
+public interface RecordableAnnotation extends Annotation {
+    // Draws the annotation at the original image size, leaving anything cached for drawOnCanvas untouched.
+    void recordOnCanvas(Canvas canvas, int bgWidth, int bgHeight);
+}
@@ -35,6 +35,14 @@ public class RelativePoint implements Parcelable {
         return (int) (relativeY * dimensionY);
     }
 
+    public double getRelativeX() {
+        return relativeX;
+    }
+
+    public double getRelativeY() {
+        return relativeY;
+    }
+
     public int describeContents() {
         return 0;
     }
@@ -0,0 +1,9 @@
+package com.example.jying.androidannotations.support;
+
+/**
+ * Notified on the main thread when a BackingCanvas has something new to show from a frame that is being rendered in the background.
+ */
+public interface RenderDelegate {
+    void onRenderProgress(BackingCanvas backingCanvas); // Part of a frame is done and can be drawn.
+    void onRenderComplete(BackingCanvas backingCanvas); // The whole frame has been swapped in.
+}
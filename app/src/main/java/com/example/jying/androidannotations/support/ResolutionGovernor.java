@@ -0,0 +1,142 @@
+package com.example.jying.androidannotations.support;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Picks the resize ratio of every BackingCanvas at runtime.
+ * Layers state the ratio they would prefer, and every canvas is scaled so that all of them fit in a memory budget and a full redraw of each stays within a time target.
+ * On large devices this lets canvases go above the preferred ratios, up to full size.  Under memory pressure, resolution is stepped down.
+ */
+public class ResolutionGovernor {
+
+    private static final float DEFAULT_PREFERRED_RATIO = .5f; // Used for a canvas until one of its layers states a preference.
+    private static final float MIN_RATIO = .2f;
+    private static final float MAX_RATIO = 1;
+    private static final float RATIO_STEP = .05f; // Ratios are rounded down to a multiple of this, so small changes in the inputs don't reallocate bitmaps.
+    private static final int BUDGET_HEAP_DIVISOR = 3; // By default, canvases may use up to this fraction of the heap.
+    private static final long TARGET_FULL_REDRAW_NANOS = 100 * 1000 * 1000; // Full redraws slower than this make the canvas step down.
+    private static final float PRESSURE_STEP = .7f; // How much the budget shrinks each time the system reports memory pressure.
+    private static final float MIN_PRESSURE = .25f;
+    private static final int BYTES_PER_PIXEL = 4; // Backing bitmaps and layers are ARGB_8888.
+
+    private long budgetBytes;
+    private float pressure = 1; // Multiplies the budget.  Lowered by onTrimMemory and restored by resetPressure.
+    private ArrayList<BackingCanvas> canvases;
+    private HashMap<AnnotationLayer, Float> preferredRatios; // The ratio each layer currently wants for its canvas.
+    private HashMap<BackingCanvas, Float> ratios; // The ratio last applied to each canvas.
+
+    public ResolutionGovernor() {
+        this(Runtime.getRuntime().maxMemory() / BUDGET_HEAP_DIVISOR);
+    }
+
+    public ResolutionGovernor(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        canvases = new ArrayList<BackingCanvas>();
+        preferredRatios = new HashMap<AnnotationLayer, Float>();
+        ratios = new HashMap<BackingCanvas, Float>();
+    }
+
+    public void addCanvas(BackingCanvas canvas) {
+        if (!canvases.contains(canvas)) {
+            canvases.add(canvas);
+            apply();
+        }
+    }
+
+    // Sets the ratio a layer would like its canvas to have, then rebalances every canvas.  A canvas shared by several layers takes the highest preference.
+    public void setPreferredRatio(AnnotationLayer layer, float ratio) {
+        preferredRatios.put(layer, ratio);
+        apply();
+    }
+
+    // Forward ComponentCallbacks2.onTrimMemory here.  Pooled bitmaps are always dropped, and resolution is stepped down when memory is actually short.
+    public void onTrimMemory(int level) {
+        BitmapPool.getInstance().clear();
+        if ((level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) || (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)) {
+            return; // Not short on memory yet.
+        }
+        pressure = Math.max(MIN_PRESSURE, pressure * PRESSURE_STEP);
+        apply();
+    }
+
+    // Returns to the full budget.  Call when the UI comes back, since memory is reclaimed while the app is in the background.
+    public void resetPressure() {
+        if (pressure == 1) {
+            return; // Nothing was stepped down.
+        }
+        pressure = 1;
+        apply();
+    }
+
+    // Works out the ratio of every canvas and resizes the ones that changed.
+    private void apply() {
+        if (canvases.isEmpty()) {
+            return;
+        }
+
+        // Find how much every preferred ratio can be scaled by while fitting in the budget.  Memory grows with the square of the ratio.
+        HashMap<BackingCanvas, Float> preferred = getPreferredRatios();
+        double preferredBytes = 0;
+        for (BackingCanvas canvas : canvases) {
+            preferredBytes += getBytesAtRatio(canvas, preferred.get(canvas));
+        }
+        double budgetScale = (preferredBytes > 0) ? Math.sqrt(budgetBytes * pressure / preferredBytes) : 1;
+
+        for (BackingCanvas canvas : canvases) {
+            double ratio = Math.min(preferred.get(canvas) * budgetScale, getTimeLimitedRatio(canvas));
+            ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio));
+            float stepped = Math.max(MIN_RATIO, (float) (Math.floor(ratio / RATIO_STEP + 1e-4) * RATIO_STEP)); // Allow for floating point error just below a step.
+
+            Float current = ratios.get(canvas);
+            if ((current == null) || (current != stepped)) {
+                ratios.put(canvas, stepped);
+                canvas.setResizeRatio(stepped);
+            }
+        }
+    }
+
+    private HashMap<BackingCanvas, Float> getPreferredRatios() {
+        HashMap<BackingCanvas, Float> preferred = new HashMap<BackingCanvas, Float>();
+        for (Map.Entry<AnnotationLayer, Float> entry : preferredRatios.entrySet()) {
+            BackingCanvas canvas = entry.getKey().getOverlay().getBackingCanvas();
+            Float existing = preferred.get(canvas);
+            if ((existing == null) || (entry.getValue() > existing)) {
+                preferred.put(canvas, entry.getValue());
+            }
+        }
+        for (BackingCanvas canvas : canvases) {
+            if (!preferred.containsKey(canvas)) {
+                preferred.put(canvas, DEFAULT_PREFERRED_RATIO);
+            }
+        }
+        return preferred;
+    }
+
+    // Estimates the memory a canvas uses at a ratio, counting its cached layers and the second buffer used for background rendering.
+    private static double getBytesAtRatio(BackingCanvas canvas, float ratio) {
+        int buffers = 1;
+        if (canvas.isLayerCaching()) {
+            buffers += canvas.getNumLayers();
+        }
+        if (canvas.isAsyncRendering()) {
+            buffers *= 2; // A frame is rendered in full before the old one is released.
+        }
+        return (double) canvas.getOriginalWidth() * canvas.getOriginalHeight() * ratio * ratio * BYTES_PER_PIXEL * buffers;
+    }
+
+    // The largest ratio at which a full redraw of the canvas should meet the time target, based on how fast its last full redraw was.
+    private static double getTimeLimitedRatio(BackingCanvas canvas) {
+        long pixels = canvas.getLastFullRedrawPixelCount();
+        long nanos = canvas.getLastFullRedrawNanos();
+        if ((pixels == 0) || (nanos == 0)) {
+            return MAX_RATIO; // Nothing measured yet.
+        }
+        double allowedPixels = TARGET_FULL_REDRAW_NANOS * ((double) pixels / nanos);
+        return Math.sqrt(allowedPixels / ((double) canvas.getOriginalWidth() * canvas.getOriginalHeight()));
+    }
+
+}
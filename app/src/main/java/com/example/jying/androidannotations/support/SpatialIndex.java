@@ -0,0 +1,216 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * A quadtree of items keyed by their bounding rectangles, used for hit-testing and for culling redraws.
+ * Each item lives in the smallest node that fully contains its bounds.  Items outside the indexed area live at the root, and items without bounds match every query.
+ * Query results are returned in the order items were first added, so later (topmost) items come last.
+ */
+public class SpatialIndex<T> {
+
+    private static final int MAX_ITEMS_PER_NODE = 8; // A node splits into quadrants once it holds more items than this.
+    private static final int MAX_DEPTH = 8;
+
+    private static final Comparator<Entry<?>> ORDER_COMPARATOR = new Comparator<Entry<?>>() {
+        @Override
+        public int compare(Entry<?> lhs, Entry<?> rhs) {
+            return (lhs.order < rhs.order) ? -1 : ((lhs.order == rhs.order) ? 0 : 1);
+        }
+    };
+
+    private Node<T> root;
+    private IdentityHashMap<T, Entry<T>> entries; // Items are compared by identity, since annotations don't define equality.
+    private ArrayList<Entry<T>> unbounded;
+    private long nextOrder;
+
+    public SpatialIndex(int width, int height) {
+        root = new Node<T>(new Rect(0, 0, width, height), 0);
+        entries = new IdentityHashMap<T, Entry<T>>();
+        unbounded = new ArrayList<Entry<T>>();
+    }
+
+    public int getWidth() {
+        return root.bounds.width();
+    }
+
+    public int getHeight() {
+        return root.bounds.height();
+    }
+
+    // Adds an item, or moves it if it's already indexed.  A moved item keeps its place in the query order.
+    public void put(T item, Rect bounds) {
+        Entry<T> entry = entries.get(item);
+        if (entry == null) {
+            entry = new Entry<T>(item, nextOrder++);
+            entries.put(item, entry);
+        }
+        else {
+            detach(entry);
+        }
+
+        if (bounds == null) {
+            entry.bounds = null;
+            unbounded.add(entry);
+        }
+        else {
+            entry.bounds = new Rect(bounds);
+            root.insert(entry);
+        }
+    }
+
+    public void remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry != null) {
+            detach(entry);
+        }
+    }
+
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        root = new Node<T>(root.bounds, 0);
+        entries.clear();
+        unbounded.clear();
+    }
+
+    // Gets every item whose bounds intersect a region.
+    public List<T> query(Rect region) {
+        ArrayList<Entry<T>> matches = new ArrayList<Entry<T>>(unbounded);
+        root.query(region, matches);
+        return toItems(matches);
+    }
+
+    // Gets every item whose bounds contain a point.
+    public List<T> query(int x, int y) {
+        return query(new Rect(x, y, x + 1, y + 1));
+    }
+
+    // Gets every item whose bounds come within a distance of a point.  Used for touch targets, which are larger than what's drawn.
+    public List<T> queryNear(int x, int y, int distance) {
+        return query(new Rect(x - distance, y - distance, x + distance + 1, y + distance + 1));
+    }
+
+    private void detach(Entry<T> entry) {
+        if (entry.node != null) {
+            entry.node.items.remove(entry);
+            entry.node = null;
+        }
+        else {
+            unbounded.remove(entry);
+        }
+    }
+
+    private List<T> toItems(List<Entry<T>> matches) {
+        Collections.sort(matches, ORDER_COMPARATOR);
+        ArrayList<T> items = new ArrayList<T>(matches.size());
+        for (Entry<T> entry : matches) {
+            items.add(entry.item);
+        }
+        return items;
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final long order;
+        Rect bounds;
+        Node<T> node; // The node this entry is stored in, or null if it has no bounds.
+
+        Entry(T item, long order) {
+            this.item = item;
+            this.order = order;
+        }
+    }
+
+    private static class Node<T> {
+        final Rect bounds;
+        final int depth;
+        final ArrayList<Entry<T>> items = new ArrayList<Entry<T>>();
+        Node<T>[] children;
+
+        Node(Rect bounds, int depth) {
+            this.bounds = bounds;
+            this.depth = depth;
+        }
+
+        void insert(Entry<T> entry) {
+            Node<T> child = getContainingChild(entry.bounds);
+            if (child != null) {
+                child.insert(entry);
+                return;
+            }
+
+            items.add(entry);
+            entry.node = this;
+            if ((children == null) && (items.size() > MAX_ITEMS_PER_NODE) && (depth < MAX_DEPTH)) {
+                split();
+            }
+        }
+
+        void query(Rect region, List<Entry<T>> matches) {
+            for (Entry<T> entry : items) {
+                if (Rect.intersects(entry.bounds, region)) {
+                    matches.add(entry);
+                }
+            }
+            if (children != null) {
+                for (Node<T> child : children) {
+                    if (Rect.intersects(child.bounds, region)) {
+                        child.query(region, matches);
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void split() {
+            int centerX = bounds.centerX();
+            int centerY = bounds.centerY();
+            children = new Node[] {
+                    new Node<T>(new Rect(bounds.left, bounds.top, centerX, centerY), depth + 1),
+                    new Node<T>(new Rect(centerX, bounds.top, bounds.right, centerY), depth + 1),
+                    new Node<T>(new Rect(bounds.left, centerY, centerX, bounds.bottom), depth + 1),
+                    new Node<T>(new Rect(centerX, centerY, bounds.right, bounds.bottom), depth + 1)
+            };
+
+            // Push down every item that fits entirely inside one quadrant.
+            ArrayList<Entry<T>> remaining = new ArrayList<Entry<T>>();
+            for (Entry<T> entry : items) {
+                Node<T> child = getContainingChild(entry.bounds);
+                if (child == null) {
+                    remaining.add(entry);
+                }
+                else {
+                    child.insert(entry);
+                }
+            }
+            items.clear();
+            items.addAll(remaining);
+        }
+
+        private Node<T> getContainingChild(Rect itemBounds) {
+            if (children == null) {
+                return null;
+            }
+            for (Node<T> child : children) {
+                if (child.bounds.contains(itemBounds)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+}
@@ -13,13 +13,15 @@ import android.graphics.Rect;
 public class Subview extends BoundedRectangle {
 
     // Constants
-    private static final float MAX_MAGNIFICATION_MODIFIER = 2; // The view can be zoomed in such that the ratio of pixels in the image to pixels on the screen is 1:MAX_MAGNIFICATION_MODIFIER
+    public static final float MAX_MAGNIFICATION_MODIFIER = 2; // The view can be zoomed in such that the ratio of pixels in the image to pixels on the screen is 1:MAX_MAGNIFICATION_MODIFIER
     private static final float NEXT_RESIZE_PADDING_PERCENT = .1f; // How much padding to leave on the edges of the screen when a rectangle is focused.  In this case, .1 padding would mean that 80% of the screen is rectangle and 20% is padding, with 10% on either side.
 
     private Rect rectangleToSet; // The rectangle to set after setViewDimensions gives the subview valid dimensions;
     private int viewWidth, viewHeight; // Stores the dimensions of the view.  This is used to generate an aspect ratio and also calculate the largest magnification allowable.
     private float viewAspectRatio; // This is the aspect ratio of the screen.
     private float zoomModifier; // Controls how quickly zoom actions occur.  For each pixel of distance change between the user's fingers, the distance of the childRectangle will change by the modifier;
+    private float maxMagnification = MAX_MAGNIFICATION_MODIFIER;
+    private final Rect unmodified = new Rect(); // Scratch copy of the subview taken before each zoom step, so zooming doesn't allocate.
 
     public Subview(int bgWidth, int bgHeight, int viewWidth, int viewHeight) {
         super(new Rect(0, 0, bgWidth, bgHeight), new Rect(0, 0, viewWidth, viewHeight));
@@ -79,6 +81,11 @@ public class Subview extends BoundedRectangle {
         return (float) canvas.getWidth() / getBgWidth();
     }
 
+    // Allows zooming in further than MAX_MAGNIFICATION_MODIFIER, such as when the background has more detail than its bitmap.
+    public void setMaxMagnification(float maxMagnification) {
+        this.maxMagnification = maxMagnification;
+    }
+
     public float getMagnification() {
         return (float) viewWidth / (float) child.width();
     }
@@ -87,10 +94,25 @@ public class Subview extends BoundedRectangle {
 
     // Gets the true location on the image that the user has touched.
     public Point getTruePoint(Point original) {
+        return getTruePoint(original, new Point());
+    }
+
+    // Writes the true location of a touch into out and returns it, so touch handling can reuse its points.  original and out may be the same point.
+    public Point getTruePoint(Point original, Point out) {
+        out.set(getTrueX(original.x), getTrueY(original.y));
+        return out;
+    }
+
+    // Gets the true x coordinate on the image of an x coordinate in the view.
+    public int getTrueX(int viewX) {
         float widthModifier = (float) child.width() / viewWidth;
-        float heightModifier = (float) child.height() / viewHeight;
+        return (int) (viewX * widthModifier + child.left);
+    }
 
-        return new Point((int) (original.x * widthModifier + child.left), (int) (original.y * heightModifier + child.top));
+    // Gets the true y coordinate on the image of a y coordinate in the view.
+    public int getTrueY(int viewY) {
+        float heightModifier = (float) child.height() / viewHeight;
+        return (int) (viewY * heightModifier + child.top);
     }
 
     // Gets the location on the AnnotationView that the user has touched.
@@ -178,7 +200,7 @@ public class Subview extends BoundedRectangle {
 
     // Generates a new rectangle with the area changed as requested.
     private void insetSubview(float dx, float dy) {
-        Rect unmodified = new Rect(child);
+        unmodified.set(child);
         child.inset((int) dx, (int) dy);
 
         // Ensure that generated rectangle is within specified width and height.
@@ -194,12 +216,11 @@ public class Subview extends BoundedRectangle {
             child.offset(centerX - child.centerX(), centerY - child.centerY());
         }
 
-        if (child.width() < viewWidth / MAX_MAGNIFICATION_MODIFIER) {
-            Rect resizedRect = new Rect(child.centerX(), child.centerY(), child.centerX(), child.centerY());
-            int insetX = (int) (viewWidth / (-2 * MAX_MAGNIFICATION_MODIFIER));
-            int insetY = (int) (viewHeight / (-2 * MAX_MAGNIFICATION_MODIFIER));
-            resizedRect.inset(insetX, insetY);
-            child.set(resizedRect);
+        if (child.width() < viewWidth / maxMagnification) {
+            int insetX = (int) (viewWidth / (-2 * maxMagnification));
+            int insetY = (int) (viewHeight / (-2 * maxMagnification));
+            child.set(child.centerX(), child.centerY(), child.centerX(), child.centerY());
+            child.inset(insetX, insetY);
             if ((child.width() > getBgWidth()) || child.height() > getBgHeight()) {
                 child.set(unmodified);
             }
@@ -0,0 +1,8 @@
+package com.example.jying.androidannotations.support;
+
+/**
+ * Notified on the main thread when a TiledImageSource has loaded a tile that was missing the last time it was drawn.
+ */
+public interface TileDelegate {
+    void onTileLoaded(TiledImageSource source);
+}
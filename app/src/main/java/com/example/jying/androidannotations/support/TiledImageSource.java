@@ -0,0 +1,279 @@
+package com.example.jying.androidannotations.support;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Draws parts of a large image file at the detail they're viewed at, without ever holding the whole image in memory.
+ * The image is split into a pyramid of square tiles: level 0 is full resolution, and each level above it is half the size of the one below.
+ * Tiles are decoded on a background thread with BitmapRegionDecoder, kept in an in-memory LRU cache, and written to a disk cache so they are cheap to load again.
+ * Everything except the decoding happens on the main thread.
+ */
+public class TiledImageSource {
+
+    private static final String TAG = "TiledImageSource";
+    private static final int TILE_SIZE = 256; // The width and height of a tile, in pixels of its own level.
+    private static final int MEMORY_CACHE_HEAP_DIVISOR = 16; // Cached tiles may use up to this fraction of the heap.
+
+    private final File imageFile;
+    private final File cacheDirectory; // Decoded tiles are saved here as PNGs.
+    private final int width, height; // Full resolution dimensions of the image.
+    private final int levelCount; // The top level holds the whole image in a single tile.
+    private BitmapRegionDecoder decoder; // Only used on the decode thread.
+    private LruCache<String, Bitmap> memoryCache;
+    private HashSet<String> pendingTiles; // Tiles that have been requested but haven't been loaded yet.
+    private HandlerThread decodeThread;
+    private Handler decodeHandler, mainHandler;
+    private TileDelegate delegate;
+    private boolean closed;
+    private final Rect tileBounds = new Rect(); // Reused for every tile drawn, on the main thread.
+    private final RectF tileDestination = new RectF();
+
+    public TiledImageSource(File imageFile, File cacheDirectory) throws IOException {
+        this.imageFile = imageFile;
+        this.cacheDirectory = cacheDirectory;
+        decoder = BitmapRegionDecoder.newInstance(imageFile.getPath(), false);
+        width = decoder.getWidth();
+        height = decoder.getHeight();
+
+        int levels = 1;
+        while (((width >> (levels - 1)) > TILE_SIZE) || ((height >> (levels - 1)) > TILE_SIZE)) {
+            levels++;
+        }
+        levelCount = levels;
+
+        if (!cacheDirectory.exists() && !cacheDirectory.mkdirs()) {
+            Log.d(TAG, "Unable to create tile cache " + cacheDirectory.getPath());
+        }
+
+        memoryCache = new LruCache<String, Bitmap>((int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_HEAP_DIVISOR)) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        pendingTiles = new HashSet<String>();
+        decodeThread = new HandlerThread("TileDecoder");
+        decodeThread.start();
+        decodeHandler = new Handler(decodeThread.getLooper());
+        mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public File getImageFile() {
+        return imageFile;
+    }
+
+    public void setTileDelegate(TileDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    // Decodes the whole image at no more than the given width, as a mutable ARGB_8888 bitmap.
+    // The image is subsampled while decoding, so the full resolution image is never in memory.
+    public Bitmap decodeScaled(int maxWidth) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while ((width / (options.inSampleSize * 2)) >= maxWidth) {
+            options.inSampleSize *= 2; // Keep at least maxWidth pixels, so the final scale below only ever shrinks.
+        }
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        Bitmap bitmap = BitmapFactory.decodeFile(imageFile.getPath(), options);
+        if ((bitmap != null) && (bitmap.getWidth() > maxWidth)) {
+            int scaledHeight = (int) ((float) maxWidth / ((float) bitmap.getWidth() / (float) bitmap.getHeight()));
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, maxWidth, scaledHeight, false);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+
+    // Draws part of the image (in full resolution pixels) into a destination rectangle, using the coarsest level that still has at least one tile pixel per destination pixel.
+    // Tiles that aren't loaded yet are skipped and requested, and the delegate is told when they arrive.  Returns whether every tile was drawn.
+    public boolean draw(Canvas canvas, Rect source, Rect destination, Paint paint) {
+        if (closed || source.isEmpty() || destination.isEmpty()) {
+            return false;
+        }
+
+        int level = getLevel((float) destination.width() / source.width());
+        int span = TILE_SIZE << level; // Full resolution pixels covered by one tile at this level.
+        float scaleX = (float) destination.width() / source.width();
+        float scaleY = (float) destination.height() / source.height();
+
+        boolean complete = true;
+        int firstColumn = Math.max(0, source.left / span);
+        int firstRow = Math.max(0, source.top / span);
+        int lastColumn = Math.min((width - 1) / span, (source.right - 1) / span);
+        int lastRow = Math.min((height - 1) / span, (source.bottom - 1) / span);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                String key = getKey(level, column, row);
+                Bitmap tile = memoryCache.get(key);
+                if (tile == null) {
+                    requestTile(level, column, row, key);
+                    complete = false;
+                    continue;
+                }
+
+                getTileBounds(level, column, row, tileBounds);
+                tileDestination.set(destination.left + (tileBounds.left - source.left) * scaleX,
+                        destination.top + (tileBounds.top - source.top) * scaleY,
+                        destination.left + (tileBounds.right - source.left) * scaleX,
+                        destination.top + (tileBounds.bottom - source.top) * scaleY);
+                canvas.drawBitmap(tile, null, tileDestination, paint);
+            }
+        }
+        return complete;
+    }
+
+    // Drops every tile held in memory.  Tiles on disk are kept.
+    public void trimMemory() {
+        memoryCache.evictAll();
+    }
+
+    // Stops decoding and frees the decoder.  The source can't be drawn afterwards.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        memoryCache.evictAll();
+        pendingTiles.clear();
+        decodeHandler.removeCallbacksAndMessages(null);
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                decoder.recycle(); // Done on the decode thread so a decode in progress can finish first.
+                decodeThread.quit();
+            }
+        });
+    }
+
+    // Deletes every tile saved on disk, along with the cache directory.  Call this once the image won't be viewed again.
+    public void deleteCache() {
+        File[] files = cacheDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.d(TAG, "Unable to delete cached tile " + file.getPath());
+                }
+            }
+        }
+        cacheDirectory.delete();
+    }
+
+    // Picks the coarsest level whose tiles are still at least as detailed as the destination.  scale is destination pixels per full resolution pixel.
+    private int getLevel(float scale) {
+        int level = 0;
+        while ((level < levelCount - 1) && ((1 << (level + 1)) * scale <= 1)) {
+            level++;
+        }
+        return level;
+    }
+
+    // Sets bounds to the part of the full resolution image a tile covers, and returns them.
+    private Rect getTileBounds(int level, int column, int row, Rect bounds) {
+        int span = TILE_SIZE << level;
+        bounds.set(column * span, row * span, Math.min(width, (column + 1) * span), Math.min(height, (row + 1) * span));
+        return bounds;
+    }
+
+    private static String getKey(int level, int column, int row) {
+        return level + "_" + column + "_" + row;
+    }
+
+    private void requestTile(final int level, final int column, final int row, final String key) {
+        if (!pendingTiles.add(key)) {
+            return; // Already on its way.
+        }
+        decodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                File cachedFile = new File(cacheDirectory, key + ".png");
+                Bitmap cached = loadCachedTile(cachedFile);
+                final Bitmap tile = (cached != null) ? cached : decodeTile(level, column, row);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        pendingTiles.remove(key);
+                        if (closed || (tile == null)) {
+                            return;
+                        }
+                        memoryCache.put(key, tile);
+                        if (delegate != null) {
+                            delegate.onTileLoaded(TiledImageSource.this);
+                        }
+                    }
+                });
+                if ((cached == null) && (tile != null)) {
+                    writeTile(tile, cachedFile); // Only once the tile is on its way to the screen, since compressing it takes longer than decoding.
+                }
+            }
+        });
+    }
+
+    // Loads a tile from the disk cache, or returns null if it isn't cached.  Called on the decode thread.
+    private static Bitmap loadCachedTile(File cachedFile) {
+        if (!cachedFile.exists()) {
+            return null;
+        }
+        return BitmapFactory.decodeFile(cachedFile.getPath());
+    }
+
+    // Decodes a tile from the image.  Called on the decode thread.
+    private Bitmap decodeTile(int level, int column, int row) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return decoder.decodeRegion(getTileBounds(level, column, row, new Rect()), options);
+    }
+
+    // Saves a tile through a temporary file, so a partly written tile is never read back.
+    private static void writeTile(Bitmap tile, File file) {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream stream = new FileOutputStream(temporaryFile);
+            try {
+                tile.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            }
+            finally {
+                stream.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                Log.d(TAG, "Unable to cache tile " + file.getPath());
+            }
+        }
+        catch (IOException e) {
+            Log.d(TAG, "Unable to write tile " + file.getPath());
+        }
+    }
+
+}
@@ -0,0 +1,12 @@
+package com.example.jying.androidannotations.support;
+
+import java.io.File;
+
+/**
+ * Notified on the main thread when a file queued with FileManager has been written, abandoned or failed.
+ */
+public interface WriteDelegate {
+    void onWriteComplete(File file);
+    void onWriteAbandoned(File file);
+    void onWriteFailed(File file);
+}
@@ -0,0 +1,12 @@
+package com.example.jying.androidannotations.support;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces the contents of a file written by FileManager's write queue.  Called on the write thread.
+ */
+public interface WriteTask {
+    // Writes the whole file to the stream, which is buffered and closed by FileManager.  Returns false to abandon the write, in which case the destination is left untouched.
+    boolean writeTo(OutputStream out) throws IOException;
+}
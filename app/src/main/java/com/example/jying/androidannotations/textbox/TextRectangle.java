@@ -115,8 +115,13 @@ public class TextRectangle extends BoundedRectangle implements Annotation {
         modifyBoundBottom = bottomBoundModifierPrevious;
     }
 
+    // How far outside of a rectangle (in image pixels) a touch can be and still grab it.
+    public static int getGrabTolerance(Subview subview) {
+        return (int) (cornerTolerance / subview.getMagnification());
+    }
+
     public boolean contains(Point point) {
-        int tolerance = (int) (cornerTolerance / subview.getMagnification());
+        int tolerance = getGrabTolerance(subview);
         Rect toleranceRect = new Rect(child);
         toleranceRect.inset(-1 * tolerance, -1 * tolerance);
         return toleranceRect.contains(point.x, point.y);
@@ -306,6 +311,10 @@ public class TextRectangle extends BoundedRectangle implements Annotation {
         model.drawOnCanvas(canvas, subview, getModifiedbounds());
     }
 
+    public Rect getBounds(int bgWidth, int bgHeight, float resizeRatio) {
+        return model.getBounds();
+    }
+
     public TextRectangle(TextRectangleModel data, Subview subview) {
         this(new Point(data.backingRect.left, data.backingRect.top), new Point(data.backingRect.right, data.backingRect.bottom), data.text, subview);
         model.setFontSize(data.fontSize);
@@ -146,6 +146,19 @@ public class TextRectangleModel implements Parcelable {
         backingRect.set(savedRect);
     }
 
+    // Gets the area covered by drawOnCanvas in original image pixels.  Text that overflows the rectangle is included.
+    public Rect getBounds() {
+        Rect bounds = new Rect(backingRect);
+        bounds.sort(); // The rectangle may be inverted while the user is still dragging it out.
+        StaticLayout textRegion = getTextLayout();
+        bounds.union(bounds.left, bounds.top, bounds.left + textRegion.getWidth(), bounds.top + textRegion.getHeight());
+
+        // Leave room for the padding and for outlines on either side of the padded boundary.
+        int outset = padding + 2 * outlineWidth + 1;
+        bounds.inset(-outset, -outset);
+        return bounds;
+    }
+
     public Rect getPaddedBoundaries() {
         return getPaddedAdjustedBoundaries(1);
     }
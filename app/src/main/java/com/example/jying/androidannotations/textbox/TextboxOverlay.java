@@ -6,6 +6,7 @@ import android.os.Bundle;
 import android.os.Parcelable;
 
 import com.example.jying.androidannotations.AnnotationView;
+import com.example.jying.androidannotations.support.Annotation;
 import com.example.jying.androidannotations.support.Overlay;
 
 import java.util.ArrayList;
@@ -112,18 +113,22 @@ public class TextboxOverlay extends Overlay {
     }
 
     public void increaseFontSize() {
+        invalidateAnnotation(selectedTextRectangle);
         selectedTextRectangle.increaseFontSize();
-        backingCanvas.redrawAll();
+        invalidateAnnotation(selectedTextRectangle);
+        redrawDamaged();
     }
 
     public void decreaseFontSize() {
+        invalidateAnnotation(selectedTextRectangle);
         selectedTextRectangle.decreaseFontSize();
-        backingCanvas.redrawAll();
+        invalidateAnnotation(selectedTextRectangle);
+        redrawDamaged();
     }
 
     public void removeSelection() {
         setSelectedTextRectangle(null);
-        backingCanvas.redrawAll();
+        redrawDamaged();
     }
 
     public void deleteSelectedTextRectangle() {
@@ -132,10 +137,12 @@ public class TextboxOverlay extends Overlay {
             delegate.onTimeStampExistenceChanged(false);
         }
 
+        invalidateAnnotation(selectedTextRectangle);
         textRectangles.remove(selectedTextRectangle);
+        unindexAnnotation(selectedTextRectangle);
         setSelectedTextRectangle(null);
         delegate.onTextRectangleDeselect();
-        backingCanvas.redrawAll();
+        redrawDamaged();
     }
 
     public String getText() {
@@ -144,8 +151,10 @@ public class TextboxOverlay extends Overlay {
 
     public void setText(String newText) {
         if (selectedTextRectangle != null) {
+            invalidateAnnotation(selectedTextRectangle);
             selectedTextRectangle.setText(newText);
-            backingCanvas.redrawAll();
+            invalidateAnnotation(selectedTextRectangle);
+            redrawDamaged();
         }
     }
 
@@ -178,19 +187,21 @@ public class TextboxOverlay extends Overlay {
         }
         // If the user clicked on blank space:
         else {
-            fingerDownPoint = position;
+            fingerDownPoint = new Point(position); // The gesture handler reuses position, so keep a copy.
             mode = MODE_DESELECT;
         }
-        backingCanvas.redrawAll();
+        redrawDamaged();
     }
 
     // Called when the user is performing a one-finger drawing gesture (moving one finger on the screen)
     @Override
-    protected void gestureDraw(Point position, int dx, int dy, boolean possiblyAccidental) {
+    protected void gestureDraw(Point position, int dx, int dy, long eventTime, boolean possiblyAccidental) {
         if (selectedTextRectangle != null) {
+            invalidateAnnotation(selectedTextRectangle);
             selectedTextRectangle.applyAction(dx, dy, position); // Modify the rectangle bounds accordingly.
+            invalidateAnnotation(selectedTextRectangle);
             delegate.onTextRectangleModify();
-            backingCanvas.redrawAll();
+            redrawDamaged();
         }
         else if (!possiblyAccidental) {
             // If we know the draw definitely isn't accidental, create a TextRectangle where requested.
@@ -212,17 +223,19 @@ public class TextboxOverlay extends Overlay {
             int xPx = Math.abs(viewStart.x - viewEnd.x);
             int yPx = Math.abs(viewStart.y - viewEnd.y);
             int area = AnnotationView.convertPxToDp(xPx) * AnnotationView.convertPxToDp(yPx);
+            invalidateAnnotation(selectedTextRectangle);
             if (area < MIN_DP_AREA) {
                 // If the area is too small, delete the selected text rectangle.
                 textRectangles.remove(selectedTextRectangle);
+                unindexAnnotation(selectedTextRectangle);
                 setSelectedTextRectangle(null);
-                backingCanvas.redrawAll();
             }
             else {
                 selectedTextRectangle.enforceBounds(true); // Start enforcing bounds after this point, but...
                 selectedTextRectangle.setDefaultOutline(); // ...remove any red outlining when the user removes their finger.
-                backingCanvas.redrawAll();
+                invalidateAnnotation(selectedTextRectangle);
             }
+            redrawDamaged();
         }
 
         // If the gesture that just ended has created a text rectangle, show the keyboard.
@@ -248,7 +261,8 @@ public class TextboxOverlay extends Overlay {
             // Create a new text rectangle with empty text
             setSelectedTextRectangle(new TextRectangle(fingerDownPoint, position, DEFAULT_ANNOTATION_TEXT, subview));
             textRectangles.add(selectedTextRectangle);
-            backingCanvas.redrawAll();
+            invalidateAnnotation(selectedTextRectangle);
+            redrawDamaged();
         }
     }
 
@@ -272,11 +286,16 @@ public class TextboxOverlay extends Overlay {
     private void setSelectedTextRectangle(TextRectangle rectangleToSelect) {
         // Delete the text rectangle if it has no text and is not being selected by the user.
         if ((selectedTextRectangle != null) && (selectedTextRectangle.getText().length() == 0) && (rectangleToSelect != selectedTextRectangle)) {
+            invalidateAnnotation(selectedTextRectangle);
             textRectangles.remove(selectedTextRectangle);
+            unindexAnnotation(selectedTextRectangle);
         }
 
         // Deselect all text rectangles:
         for (TextRectangle textRectangle : textRectangles) {
+            if (textRectangle.getModel().selected && (textRectangle != rectangleToSelect)) {
+                invalidateAnnotation(textRectangle); // Selection outlines will disappear.
+            }
             textRectangle.getModel().setSelection(false);
         }
 
@@ -286,6 +305,7 @@ public class TextboxOverlay extends Overlay {
         else {
             delegate.onTextRectangleSelect();
             rectangleToSelect.getModel().setSelection(true);
+            invalidateAnnotation(rectangleToSelect);
             if (rectangleToSelect instanceof TimestampRectangle) {
                 delegate.onTimeStampSelect();
             }
@@ -295,9 +315,12 @@ public class TextboxOverlay extends Overlay {
     }
 
     private TextRectangle getTextRectangleAtPosition(Point position) {
-        for (int index = textRectangles.size() - 1; index >= 0; index--) {
-            if (textRectangles.get(index).contains(position)) {
-                return textRectangles.get(index);
+        // Candidates come back in the order they were added, so search backwards to find the topmost.
+        List<Annotation> candidates = getAnnotationsNear(position, TextRectangle.getGrabTolerance(subview));
+        for (int index = candidates.size() - 1; index >= 0; index--) {
+            Annotation candidate = candidates.get(index);
+            if ((candidate instanceof TextRectangle) && ((TextRectangle) candidate).contains(position)) {
+                return (TextRectangle) candidate;
             }
         }
         return null;
@@ -336,8 +359,8 @@ public class TextboxOverlay extends Overlay {
             if (model.selected) {
                 setSelectedTextRectangle(addRectangle);
             }
-            backingCanvas.redrawAll();
         }
+        backingCanvas.redrawAll(this);
     }
 
     public void addTimestampToCanvas(){
@@ -345,7 +368,8 @@ public class TextboxOverlay extends Overlay {
         if (!hasTimestamp) {
             setSelectedTextRectangle(new TimestampRectangle(subview));
             textRectangles.add(selectedTextRectangle);
-            backingCanvas.redrawAll();
+            invalidateAnnotation(selectedTextRectangle);
+            redrawDamaged();
 
             hasTimestamp = true;
             delegate.onTimeStampExistenceChanged(true);
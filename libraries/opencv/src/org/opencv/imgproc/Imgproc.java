@@ -20,6 +20,7 @@ import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.core.TermCriteria;
 import org.opencv.utils.Converters;
+import org.opencv.utils.PackedContours;
 
 public class Imgproc {
 
@@ -2393,6 +2394,17 @@ public class Imgproc {
         return;
     }
 
+    //javadoc: findContours(image, contours, hierarchy, mode, method)
+    // Packs the contours into Java arrays instead of making a MatOfPoint for each one.
+    public static void findContours(Mat image, PackedContours contours, Mat hierarchy, int mode, int method)
+    {
+        Mat contours_mat = new Mat();
+        findContours_1(image.nativeObj, contours_mat.nativeObj, hierarchy.nativeObj, mode, method);
+        Converters.Mat_to_packed_vector_vector_Point(contours_mat, contours);
+        contours_mat.release();
+        return;
+    }
+
 
     //
     // C++:  void approxPolyDP(vector_Point2f curve, vector_Point2f& approxCurve, double epsilon, bool closed)
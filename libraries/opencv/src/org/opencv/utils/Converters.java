@@ -506,6 +506,40 @@ public class Converters {
         mats.clear();
     }
 
+    // vector_vector_Point, packed into Java arrays.  Each contour's points are copied in one call, without wrapping the contour in a MatOfPoint.
+    public static void Mat_to_packed_vector_vector_Point(Mat m, PackedContours pts) {
+        if (pts == null)
+            throw new java.lang.IllegalArgumentException("Output PackedContours can't be null");
+
+        if (m == null)
+            throw new java.lang.IllegalArgumentException("Input Mat can't be null");
+
+        pts.clear();
+        int count = m.rows();
+        if (count == 0)
+            return;
+        if (CvType.CV_32SC2 != m.type() || m.cols() != 1)
+            throw new java.lang.IllegalArgumentException(
+                    "CvType.CV_32SC2 != m.type() ||  m.cols()!=1\n" + m);
+
+        int[] addrs = new int[count * 2];
+        m.get(0, 0, addrs);
+        int[] buff = new int[0];
+        for (int i = 0; i < count; i++) {
+            long addr = (((long) addrs[i * 2]) << 32) | (((long) addrs[i * 2 + 1]) & 0xffffffffL);
+            Mat mi = new Mat(addr);
+            int length = mi.rows();
+            int start = pts.appendContour(length);
+            if (length > 0) {
+                if (buff.length < length * 2)
+                    buff = new int[Math.max(length * 2, buff.length * 2)];
+                int copied = mi.get(0, 0, buff) / 4; // get() returns bytes, and the buffer may be longer than the contour.
+                System.arraycopy(buff, 0, pts.getPoints(), start, Math.min(copied, length * 2));
+            }
+            mi.release();
+        }
+    }
+
     // vector_vector_Point2f
     public static void Mat_to_vector_vector_Point2f(Mat m, List<MatOfPoint2f> pts) {
         if (pts == null)
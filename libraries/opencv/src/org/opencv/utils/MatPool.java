@@ -0,0 +1,74 @@
+package org.opencv.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.opencv.core.Mat;
+
+/**
+ * Keeps released Mats of a given shape so their native buffers can be handed out again, instead of being freed and reallocated.  Holds at most
+ * maxBytes of buffers; anything past that is released.  Safe to share between threads.
+ */
+public class MatPool {
+
+    private final long maxBytes;
+    private final HashMap<String, List<Mat>> free = new HashMap<String, List<Mat>>();
+    private long pooledBytes;
+
+    public MatPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // A pooled Mat with the given shape, or null if there isn't one.
+    public synchronized Mat take(int rows, int cols, int type) {
+        List<Mat> mats = free.get(getKey(rows, cols, type));
+        if (mats == null || mats.isEmpty()) {
+            return null;
+        }
+        Mat mat = mats.remove(mats.size() - 1);
+        pooledBytes -= getNativeBytes(mat);
+        return mat;
+    }
+
+    // Keeps the Mat for a later take() with its shape, or releases it if the pool is full.  The caller must not use the Mat again.
+    public synchronized void give(Mat mat) {
+        long bytes = getNativeBytes(mat);
+        if (bytes == 0 || pooledBytes + bytes > maxBytes) {
+            mat.release();
+            return;
+        }
+        String key = getKey(mat.rows(), mat.cols(), mat.type());
+        List<Mat> mats = free.get(key);
+        if (mats == null) {
+            mats = new ArrayList<Mat>();
+            free.put(key, mats);
+        }
+        mats.add(mat);
+        pooledBytes += bytes;
+    }
+
+    // Releases every pooled Mat.
+    public synchronized void clear() {
+        for (List<Mat> mats : free.values()) {
+            for (Mat mat : mats) {
+                mat.release();
+            }
+        }
+        free.clear();
+        pooledBytes = 0;
+    }
+
+    public synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    // The size of the Mat's pixel data.  Zero once it has been released.
+    public static long getNativeBytes(Mat mat) {
+        return mat.empty() ? 0 : mat.total() * mat.elemSize();
+    }
+
+    static String getKey(int rows, int cols, int type) {
+        return rows + "x" + cols + ":" + type;
+    }
+}
@@ -0,0 +1,138 @@
+package org.opencv.utils;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Owns every Mat created or tracked through it, and releases them all when closed, so native memory doesn't wait on finalizers.
+ * Mats created with a shape can be recycled within the scope for the next Mat of that shape, and are given to the scope's MatPool on close,
+ * if it has one, to be reused by later scopes.  Safe to share between threads.
+ *
+ * Close it in a finally block:
+ *
+ *     MatScope scope = new MatScope(pool);
+ *     try {
+ *         Mat gray = scope.newMat(rows, cols, CvType.CV_8UC1);
+ *         ...
+ *     }
+ *     finally {
+ *         scope.close();
+ *     }
+ */
+public class MatScope implements Closeable {
+
+    private final MatPool pool; // May be null.
+    private final List<Mat> tracked = new ArrayList<Mat>(); // Every Mat the scope owns, including recycled ones.
+    private final Set<Mat> shaped = Collections.newSetFromMap(new IdentityHashMap<Mat, Boolean>()); // Mats created with a shape, which may be reused.
+    private final HashMap<String, List<Mat>> recycled = new HashMap<String, List<Mat>>();
+    private boolean closed;
+
+    public MatScope() {
+        this(null);
+    }
+
+    public MatScope(MatPool pool) {
+        this.pool = pool;
+    }
+
+    // Takes ownership of a Mat created elsewhere.
+    public synchronized <T extends Mat> T track(T mat) {
+        checkOpen();
+        tracked.add(mat);
+        return mat;
+    }
+
+    // Takes ownership of every Mat in the list, such as the contours an OpenCV call filled it with.
+    public synchronized void trackAll(List<? extends Mat> mats) {
+        checkOpen();
+        tracked.addAll(mats);
+    }
+
+    public Mat newMat() {
+        return track(new Mat());
+    }
+
+    public Mat newMat(Size size, int type) {
+        return newMat((int) size.height, (int) size.width, type);
+    }
+
+    // A Mat with the given shape, reusing a recycled or pooled buffer if there is one.  Its contents are undefined.
+    public synchronized Mat newMat(int rows, int cols, int type) {
+        checkOpen();
+        Mat mat = null;
+        List<Mat> mats = recycled.get(MatPool.getKey(rows, cols, type));
+        if (mats != null && !mats.isEmpty()) {
+            return mats.remove(mats.size() - 1); // Already tracked.
+        }
+        if (pool != null) {
+            mat = pool.take(rows, cols, type);
+        }
+        if (mat == null) {
+            mat = new Mat(rows, cols, type);
+        }
+        tracked.add(mat);
+        shaped.add(mat);
+        return mat;
+    }
+
+    // Marks a Mat as no longer needed, so newMat() can hand out its buffer again.  Mats that weren't created with a shape are released instead.
+    public synchronized void recycle(Mat mat) {
+        checkOpen();
+        if (!shaped.contains(mat) || mat.empty()) {
+            tracked.remove(mat);
+            shaped.remove(mat);
+            mat.release();
+            return;
+        }
+        String key = MatPool.getKey(mat.rows(), mat.cols(), mat.type());
+        List<Mat> mats = recycled.get(key);
+        if (mats == null) {
+            mats = new ArrayList<Mat>();
+            recycled.put(key, mats);
+        }
+        mats.add(mat);
+    }
+
+    // The size of the pixel data of every Mat the scope owns.
+    public synchronized long getNativeBytes() {
+        long bytes = 0;
+        for (Mat mat : tracked) {
+            bytes += MatPool.getNativeBytes(mat);
+        }
+        return bytes;
+    }
+
+    // Releases every Mat the scope owns, or gives it to the pool if it was created with a shape.  Mats from the scope must not be used afterwards.
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Mat mat : tracked) {
+            if (pool != null && shaped.contains(mat)) {
+                pool.give(mat);
+            }
+            else {
+                mat.release();
+            }
+        }
+        tracked.clear();
+        shaped.clear();
+        recycled.clear();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("MatScope is closed");
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.opencv.utils;
+
+/**
+ * A list of integer contours held in two Java arrays, rather than one MatOfPoint per contour, so they can be read without crossing into native code.
+ * The points of every contour are packed one after another as x, y pairs, and contour i runs from point getStart(i) up to getStart(i + 1).
+ * The arrays are reused when the list is filled again.
+ */
+public class PackedContours {
+
+    private int[] points = new int[256];
+    private int[] offsets = new int[17];
+    private int count;
+
+    public int size() {
+        return count;
+    }
+
+    public int getPointCount() {
+        return offsets[count];
+    }
+
+    // The index of the first point of a contour.  getStart(size()) is the total number of points.
+    public int getStart(int contour) {
+        return offsets[contour];
+    }
+
+    public int getLength(int contour) {
+        return offsets[contour + 1] - offsets[contour];
+    }
+
+    public int getX(int point) {
+        return points[point * 2];
+    }
+
+    public int getY(int point) {
+        return points[point * 2 + 1];
+    }
+
+    // The packed x, y pairs.  Only the first getPointCount() pairs are meaningful.
+    public int[] getPoints() {
+        return points;
+    }
+
+    public void clear() {
+        count = 0;
+        offsets[0] = 0;
+    }
+
+    // Makes room for a contour of the given number of points, and returns the index in getPoints() its first x coordinate goes at.
+    // The caller fills in the coordinates.
+    int appendContour(int length) {
+        int start = offsets[count];
+        if (count + 2 > offsets.length) {
+            int[] grown = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, count + 1);
+            offsets = grown;
+        }
+        int needed = (start + length) * 2;
+        if (needed > points.length) {
+            int[] grown = new int[Math.max(needed, points.length * 2)];
+            System.arraycopy(points, 0, grown, 0, start * 2);
+            points = grown;
+        }
+        count++;
+        offsets[count] = start + length;
+        return start * 2;
+    }
+}